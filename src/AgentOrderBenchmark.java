@@ -0,0 +1,109 @@
+import java.util.List;
+import java.util.Random;
+
+import simulation.Agent;
+import simulation.World;
+
+/**
+ * Times sweeps with the agents kept in each of the orders of World.AgentOrder, over a range of numbers of agents, in
+ * a large world where agents follow lights.  Each world is first evolved for a generation, so that its agents are
+ * born, and sorted, as they would be during a run, and then a generation's worth of sweeps is timed.
+ *
+ * Hardware counters are not always to hand, so as a measure of locality the mean separation in the list of agents
+ * between each agent and the nearest agent to it (one in the same or a neighbouring site) is printed alongside; where
+ * it is small, agents near each other in the world are near each other in memory too.  Cache misses can be counted
+ * directly by running this under, for instance, "perf stat -e cache-misses" with a single order.
+ *
+ * Usage: java AgentOrderBenchmark [agents=<n,n,...>] [size=<n>] [brightness=<b>] [sweeps=<n>] [lights=<search>]
+ * [order=<o,o,...>]
+ *
+ * The output has one line per number of agents, with two columns per order:
+ *
+ * agents ms-per-sweep(birth) separation(birth) ms-per-sweep(morton) separation(morton) ...
+ *
+ * @author richard
+ *
+ */
+
+public class AgentOrderBenchmark {
+
+	// Mean separation in the list between each agent and the first other agent found on the same or a neighbouring site
+	private static double separation(World w) {
+		List<Agent> agents = w.getAgents();
+		int sx = w.getSizeX(), sy = w.getSizeY();
+		int[] at = new int[sx * sy];
+		java.util.Arrays.fill(at, -1);
+		for(int k=0; k<agents.size(); k++) at[agents.get(k).getX() * sy + agents.get(k).getY()] = k;
+		long total = 0;
+		int counted = 0;
+		for(int k=0; k<agents.size(); k++) {
+			Agent a = agents.get(k);
+			int nearest = -1;
+			for(int dx=-1; dx<=1 && nearest<0; dx++) {
+				for(int dy=-1; dy<=1 && nearest<0; dy++) {
+					int j = at[((a.getX() + dx + sx) % sx) * sy + (a.getY() + dy + sy) % sy];
+					if(j >= 0 && j != k) nearest = j;
+				}
+			}
+			if(nearest >= 0) {
+				total += Math.abs(nearest - k);
+				counted++;
+			}
+		}
+		return counted == 0 ? 0.0 : (double)total / counted;
+	}
+
+	public static void main(String args[]) {
+		int[] agents = { 10000, 50000, 200000 };
+		int size = 1001, sweeps = 20;
+		double brightness = 0.1;
+		World.LightSearch search = World.LightSearch.GRID;
+		World.AgentOrder[] orders = World.AgentOrder.values();
+		for(String t : args) {
+			if(t.startsWith("agents=")) {
+				String[] l = t.substring("agents=".length()).split(",");
+				agents = new int[l.length];
+				for(int k=0; k<l.length; k++) agents[k] = Integer.parseInt(l[k]);
+			}
+			else if(t.startsWith("size=")) size = Integer.parseInt(t.substring("size=".length()));
+			else if(t.startsWith("brightness=")) brightness = Double.parseDouble(t.substring("brightness=".length()));
+			else if(t.startsWith("sweeps=")) sweeps = Integer.parseInt(t.substring("sweeps=".length()));
+			else if(t.startsWith("lights=")) search = World.LightSearch.valueOf(t.substring("lights=".length()).toUpperCase());
+			else if(t.startsWith("order=")) {
+				String[] l = t.substring("order=".length()).split(",");
+				orders = new World.AgentOrder[l.length];
+				for(int k=0; k<l.length; k++) orders[k] = World.AgentOrder.valueOf(l[k].toUpperCase());
+			}
+			else {
+				System.err.println("usage: AgentOrderBenchmark [agents=<n,n,...>] [size=<n>] [brightness=<b>] [sweeps=<n>] [lights=<search>] [order=<o,o,...>]");
+				return;
+			}
+		}
+
+		System.out.println("# size=" + size + " brightness=" + brightness + " sweeps=" + sweeps + " lights=" + search.toString().toLowerCase());
+		StringBuilder header = new StringBuilder("# agents");
+		for(World.AgentOrder order : orders) header.append("\t" + order.toString().toLowerCase() + "\tseparation");
+		System.out.println(header);
+		for(int n : agents) {
+			StringBuilder line = new StringBuilder(Integer.toString(n));
+			for(World.AgentOrder order : orders) {
+				World w = new World();
+				w.setWorldRNG(new Random(n));
+				w.setSize(size, size);
+				w.assignFood(size * size / 260);
+				w.setAgentOrder(order);
+				w.assignAgents(n, brightness, 0.0, 1.0, 1.0);
+				w.setLightSearch(search);
+				w.evolve(sweeps, 0.0);
+				double separation = separation(w);
+
+				long start = System.nanoTime();
+				w.sweeps(sweeps);
+				double ms = (System.nanoTime() - start) / 1e6 / sweeps;
+				line.append("\t" + String.format("%.2f", ms) + "\t" + String.format("%.0f", separation));
+			}
+			System.out.println(line);
+		}
+	}
+
+}
@@ -1,6 +1,25 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
 
 import simulation.Agent;
+import simulation.CheckpointableRandom;
+import simulation.FoodIntakeTable;
+import simulation.SummaryStream;
+import simulation.SurrogateInitialiser;
 import simulation.World;
+import simulation.WorldListener;
+import simulation.World.Summary;
+import storage.ResultCache;
+import storage.RunJournalWriter;
+import storage.SummaryStoreWriter;
+import storage.TrajectoryRecorder;
 
 
 public class Batch {
@@ -21,10 +40,122 @@ public class Batch {
 	private static double mutate = 0.01;
 	
 	
-	// Obtain the transition times from specified initial condition
-	// Put B M C or D in the string to turn the behaviour on; add a * to lock it on
-	public static void doBCMD(String args[]) {
-		World w = new World();
+	// Prints a line whenever the dominant species changes
+	static class DominanceLog implements Flow.Subscriber<Summary> {
+		private PrintStream out;
+		private CountDownLatch finished = new CountDownLatch(1);
+		private int lastDominator = -1;
+
+		public DominanceLog(PrintStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription s) {
+			s.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(Summary s) {
+			if(s.domSpeciesId == lastDominator) return;
+			lastDominator = s.domSpeciesId;
+			out.println(s.generation + "\t" + s.domBrightness + "\t" + s.domContrast + "\t" + s.domMotility + "\t" + s.domDirectedness );
+		}
+
+		@Override
+		public void onError(Throwable e) {
+			e.printStackTrace();
+			finished.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			finished.countDown();
+		}
+
+		public void awaitFinished() {
+			try {
+				finished.await();
+			} catch(InterruptedException e) { /* Return silently */ }
+		}
+	}
+	
+	// Writes everything to two streams, e.g., to the console and to a buffer
+	static class Tee extends OutputStream {
+		private final OutputStream a, b;
+
+		Tee(OutputStream a, OutputStream b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			a.write(c);
+			b.write(c);
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) throws IOException {
+			a.write(buf, off, len);
+			b.write(buf, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			a.flush();
+			b.flush();
+		}
+	}
+
+	// A world set up for doBCMD, along with a description of how it was set up
+	static class Setup {
+		World world;
+		String parseIC = "";
+		boolean bodge = false;
+		double cost;
+		// Sweeps to run each generation: none if food intake is drawn from a surrogate table
+		int sweeps;
+		FoodIntakeTable surrogate = null;
+	}
+
+	/**
+	 * Describe a doBCMD run using the baked-in parameters
+	 * 
+	 * @param userIC initial condition string (see doBCMD)
+	 * @return configuration for setupWorld()
+	 */
+	static Properties defaultConfig(String userIC) {
+		Properties config = new Properties();
+		config.setProperty("ic", userIC);
+		config.setProperty("size", Integer.toString(size));
+		config.setProperty("agents", Integer.toString(agents));
+		config.setProperty("foodSites", Integer.toString(foodSites));
+		config.setProperty("cost", Double.toString(costScale));
+		config.setProperty("sweeps", Integer.toString(sweepsPerGeneration));
+		config.setProperty("generations", Integer.toString(generations));
+		config.setProperty("mutate", Double.toString(mutate));
+		return config;
+	}
+
+	/**
+	 * Create a world with the initial condition and parameters given in a configuration
+	 * 
+	 * @param config configuration, as produced by defaultConfig()
+	 * @param rng generator for the world to use, or null to use the shared generator
+	 * @return the world and a description of the initial condition
+	 * @throws IOException if the surrogate table cannot be opened
+	 */
+	static Setup setupWorld(Properties config, Random rng) throws IOException {
+		Setup setup = new Setup();
+		int size = Integer.parseInt(config.getProperty("size"));
+		int foodSites = Integer.parseInt(config.getProperty("foodSites"));
+		int agents = Integer.parseInt(config.getProperty("agents"));
+		setup.sweeps = Integer.parseInt(config.getProperty("sweeps"));
+		setup.cost = Double.parseDouble(config.getProperty("cost"));
+
+		World w = setup.world = new World();
+		w.setWorldRNG(rng);
 		w.setSize(size, size);
 		w.setBrightnessMutability(true);
 		w.setContrastMutability(true);
@@ -33,85 +164,254 @@ public class Batch {
 		w.assignFood(foodSites);
 		
 		// Grok the initial condition
-		String userIC = "";
-		for(String t : args) userIC+=t.toLowerCase();
-		
+		String userIC = config.getProperty("ic");
 		double brightness = 0.0, contrast = 0.0, motility = 0.0, directedness = 0.0;
-		boolean bodge = false;
-		
-		String parseIC = "";
 		
 		for(int i=0; i < userIC.length(); i++) {
 			if(userIC.charAt(i) == 'b') {
 				brightness = 1.0;
-				parseIC += "B";
+				setup.parseIC += "B";
 				if(i+1 < userIC.length() && userIC.charAt(i+1) == 'x') {
 					w.setBrightnessMutability(false);
-					parseIC += "x";
+					setup.parseIC += "x";
 					i++;
 				}
 			}
 			else if(userIC.charAt(i) == 'c') {
 				contrast = 1.0;
-				parseIC += "C";
+				setup.parseIC += "C";
 				if(i+1 < userIC.length() && userIC.charAt(i+1) == 'x') {
 					w.setContrastMutability(false);
-					parseIC += "x";
+					setup.parseIC += "x";
 					i++;
 				}
 			}
 			else if(userIC.charAt(i) == 'm') {
 				motility = 1.0;
-				parseIC += "M";
+				setup.parseIC += "M";
 				if(i+1 < userIC.length() && userIC.charAt(i+1) == 'x') {
 					w.setMotilityMutability(false);
-					parseIC += "x";
+					setup.parseIC += "x";
 					i++;
 				}
 			}
 			else if(userIC.charAt(i) == 'd') {
 				directedness = 1.0;
-				parseIC += "D";
+				setup.parseIC += "D";
 				if(i+1 < userIC.length() && userIC.charAt(i+1) == 'x') {
 					w.setDirectednessMutability(false);
-					parseIC += "x";
+					setup.parseIC += "x";
 					i++;
 				}
 			}
 			else if(userIC.charAt(i) == 'z') {
-				costScale = 0.0;
+				setup.cost = 0.0;
 			}
 			else if(userIC.charAt(i) == 'f') {
-				bodge = true;
+				setup.bodge = true;
 			}
 		}
 
-		w.setBrightnessWeight(costScale);
-		w.setContrastWeight(costScale);
-		w.setMotilityWeight(costScale);
-		w.setDirectednessWeight(costScale);
+		w.setBrightnessWeight(setup.cost);
+		w.setContrastWeight(setup.cost);
+		w.setMotilityWeight(setup.cost);
+		w.setDirectednessWeight(setup.cost);
 		
-		if(bodge) {
-			w.setFoodInitialiser(new BrightnessBodgeInitialiser(World.getRNG(), (double)foodSites/(double)(size*size), 0.96848, 1.9094, generations));
+		if(config.getProperty("visibility") != null) {
+			w.setVisibility(Double.parseDouble(config.getProperty("visibility")),
+					World.Metric.valueOf(config.getProperty("metric", "euclidean").toUpperCase()));
+		}
+
+		if(config.getProperty("surrogate") != null) {
+			// The tables are measured with unlimited sight
+			if(w.getVisibility() != Double.POSITIVE_INFINITY) throw new IllegalArgumentException("a surrogate cannot be used with limited visibility");
+			// Overlapping generations are born during the sweeps, and there are none with a surrogate
+			if(Double.parseDouble(config.getProperty("moranRate", "0")) > 0) throw new IllegalArgumentException("a surrogate cannot be used with overlapping generations");
+			// Food intake over the whole generation is drawn from measured distributions, replacing the bodge and the sweeps
+			setup.surrogate = new FoodIntakeTable(Paths.get(config.getProperty("surrogate")), size, size, foodSites, agents, setup.sweeps);
+			w.setFoodInitialiser(new SurrogateInitialiser(setup.surrogate, w.getWorldRNG()));
+			setup.bodge = false;
+			setup.sweeps = 0;
+		}
+		else if(setup.bodge) {
+			w.setFoodInitialiser(new BrightnessBodgeInitialiser(w.getWorldRNG(), (double)foodSites/(double)(size*size), 0.96848, 1.9094,
+					Integer.parseInt(config.getProperty("generations"))));
 		}
 		
+		w.setAgentOrder(World.AgentOrder.valueOf(config.getProperty("agentOrder", "birth").toUpperCase()));
 		w.assignAgents(agents, brightness, contrast, motility, directedness);
-		Agent dominator = w.getDominator();
+		w.setFastForward(Boolean.parseBoolean(config.getProperty("fastForward", "false")));
+		w.setParallelRegeneration(Boolean.parseBoolean(config.getProperty("parallelRegeneration", "false")));
+		w.setMoranRate(Double.parseDouble(config.getProperty("moranRate", "0")));
+		w.setEngine(World.Engine.valueOf(config.getProperty("engine", "sequential").toUpperCase()));
+		w.setLightSearch(World.LightSearch.valueOf(config.getProperty("lightSearch", "scan").toUpperCase()));
+		w.setDrawOrder(World.DrawOrder.valueOf(config.getProperty("drawOrder", "legacy").toUpperCase()));
+		return setup;
+	}
 
-		System.out.println("# ic=" + parseIC + " cost=" + costScale + " bodge=" + bodge + " sweeps="+sweepsPerGeneration + " generations="+generations );
-		System.out.println("0\t" + dominator.getBrightness() + "\t" + dominator.getContrast() + "\t" + dominator.getMotility() + "\t" + dominator.getDirectedness() );
+	// Obtain the transition times from specified initial condition
+	// Put B M C or D in the string to turn the behaviour on; add a * to lock it on
+	// An argument store=<file> also records every generation's summary in a columnar store file
+	// An argument trajectory=<file> records the positions and lights of all agents after every sweep, for replay
+	// An argument seed=<n> makes the run reproducible; journal=<file> records checkpoints every checkpoint=<n> generations
+	// (default 100) from which any part of the run can be re-simulated with Resimulate
+	// An argument fastforward=true skips the sweeps of generations in which only one species is present
+	// An argument regeneration=parallel creates each new generation on all processors, reproducibly from the seed
+	// An argument engine=hybrid defers the updates of agents whose species cannot signal, and does them as random walks;
+	// engine=events updates agents in continuous time, only generating the updates in which something happens;
+	// engine=synchronous updates all agents at once, each seeing the lights as they were at the start of the sweep
+	// An argument lights=grid, lights=kinetic or lights=packed changes how the nearest light is found, without changing the results;
+	// with engine=synchronous, lights=field finds them from a field of nearest lights computed once per sweep, which is
+	// approximate, so its results can differ from those of the other searches
+	// An argument draws=table makes agents choose random steps with one draw from a table of the eight directions
+	// An argument order=morton or order=hilbert sorts each new generation along a space-filling curve, so that agents near
+	// each other in the world are near each other in memory
+	// An argument visibility=<r> stops agents seeing lights more than r sites away, measured as given by
+	// metric=euclidean (the default), metric=chebyshev or metric=manhattan
+	// An argument moran=<rate> uses overlapping generations, with rate births per sweep; moran=true gives one birth per agent
+	// per generation, on average
+	// An argument surrogate=<file> runs no sweeps, instead drawing each agent's food from distributions measured from
+	// real sweeps, which are kept in the given file and measured as they are first needed
+	// An argument cache=<dir> looks the run up in a cache of results in the given directory, printing the output of the
+	// same run done before if there was one, and storing the output otherwise; cachesize=<MB> sets the disk budget (default
+	// 256).  Only runs with a seed, and without store, trajectory, journal or surrogate, are cached
+	public static void doBCMD(String args[]) throws IOException {
+		String userIC = "";
+		String cacheDir = null;
+		long cacheBudget = ResultCache.DEFAULT_BUDGET;
+		String storeFile = null, trajectoryFile = null, journalFile = null, seed = null, surrogateFile = null, engine = null, moran = null, lights = null, visibility = null, metric = null, draws = null, order = null, regeneration = null;
+		int checkpointInterval = 100;
+		boolean fastForward = false;
+		for(String t : args) {
+			if(t.startsWith("store=")) storeFile = t.substring("store=".length());
+			else if(t.startsWith("trajectory=")) trajectoryFile = t.substring("trajectory=".length());
+			else if(t.startsWith("journal=")) journalFile = t.substring("journal=".length());
+			else if(t.startsWith("seed=")) seed = t.substring("seed=".length());
+			else if(t.startsWith("checkpoint=")) checkpointInterval = Integer.parseInt(t.substring("checkpoint=".length()));
+			else if(t.startsWith("fastforward=")) fastForward = Boolean.parseBoolean(t.substring("fastforward=".length()));
+			else if(t.startsWith("moran=")) moran = t.substring("moran=".length());
+			else if(t.startsWith("visibility=")) visibility = t.substring("visibility=".length());
+			else if(t.startsWith("metric=")) metric = t.substring("metric=".length());
+			else if(t.startsWith("draws=")) draws = t.substring("draws=".length());
+			else if(t.startsWith("order=")) order = t.substring("order=".length());
+			else if(t.startsWith("regeneration=")) regeneration = t.substring("regeneration=".length());
+			else if(t.startsWith("lights=")) lights = t.substring("lights=".length());
+			else if(t.startsWith("engine=")) engine = t.substring("engine=".length());
+			else if(t.startsWith("surrogate=")) surrogateFile = t.substring("surrogate=".length());
+			else if(t.startsWith("cache=")) cacheDir = t.substring("cache=".length());
+			else if(t.startsWith("cachesize=")) cacheBudget = Long.parseLong(t.substring("cachesize=".length())) << 20;
+			else userIC+=t.toLowerCase();
+		}
 		
-		for(int g=0; g<generations; g++) {
-			w.shuffleFood();
-			for(int t=0; t<sweepsPerGeneration; t++) {
-				w.sweep();
+		Properties config = defaultConfig(userIC);
+		if(fastForward) config.setProperty("fastForward", "true");
+		if(engine != null) config.setProperty("engine", engine);
+		if(lights != null) config.setProperty("lightSearch", lights);
+		if(draws != null) config.setProperty("drawOrder", draws);
+		if(order != null) config.setProperty("agentOrder", order);
+		if(regeneration != null) config.setProperty("parallelRegeneration", Boolean.toString(regeneration.equals("parallel")));
+		if(visibility != null) config.setProperty("visibility", visibility);
+		if(metric != null) config.setProperty("metric", metric);
+		if(moran != null) {
+			double rate = moran.equals("true") ? (double)agents / sweepsPerGeneration : Double.parseDouble(moran);
+			config.setProperty("moranRate", Double.toString(rate));
+		}
+		if(surrogateFile != null) config.setProperty("surrogate", surrogateFile);
+		CheckpointableRandom rng = null;
+		if(seed != null || journalFile != null) {
+			rng = seed != null ? new CheckpointableRandom(Long.parseLong(seed)) : new CheckpointableRandom();
+			if(seed != null) config.setProperty("seed", seed);
+		}
+
+		// A run that is reproducible from its configuration, and leaves nothing behind but its output, can be cached
+		PrintStream out = System.out;
+		ResultCache cache = null;
+		String cacheKey = null;
+		ByteArrayOutputStream captured = null;
+		if(cacheDir != null) {
+			if(seed == null || storeFile != null || trajectoryFile != null || journalFile != null || surrogateFile != null) {
+				System.err.println("# not cached: only runs with a seed, and without store, trajectory, journal or surrogate, are cached");
+			} else {
+				cache = new ResultCache(Paths.get(cacheDir), cacheBudget);
+				// The exact ways of finding lights give the same results, but the field is approximate
+				Properties key = (Properties)config.clone();
+				if(!"field".equalsIgnoreCase(key.getProperty("lightSearch"))) key.remove("lightSearch");
+				cacheKey = ResultCache.key(key);
+				byte[] cached = cache.get(cacheKey);
+				if(cached != null) {
+					out.write(cached);
+					out.flush();
+					return;
+				}
+				captured = new ByteArrayOutputStream();
+				out = new PrintStream(new Tee(System.out, captured), true);
+			}
+		}
+
+		Setup setup = setupWorld(config, rng);
+		World w = setup.world;
+
+		out.println("# ic=" + setup.parseIC + " cost=" + setup.cost + " bodge=" + setup.bodge + " surrogate=" + (setup.surrogate != null) + " sweeps="+setup.sweeps + " generations="+generations + " moran=" + w.getMoranRate() );
+
+		// Per-generation summaries go to the dominance log; it must see every generation, so the simulation waits for it if need be
+		SummaryStream stats = new SummaryStream();
+		DominanceLog log = new DominanceLog(out);
+		stats.subscribe(log, SummaryStream.Policy.BLOCK, SummaryStream.DEFAULT_CAPACITY);
+		SummaryStoreWriter store = null;
+		if(storeFile != null) {
+			store = new SummaryStoreWriter(Paths.get(storeFile));
+			stats.subscribe(store, SummaryStream.Policy.BLOCK, SummaryStream.DEFAULT_CAPACITY);
+		}
+		stats.publish(w.getSummary());
+
+		TrajectoryRecorder trajectory = null;
+		if(trajectoryFile != null) {
+			trajectory = new TrajectoryRecorder(Paths.get(trajectoryFile));
+			w.setRecorder(trajectory);
+		}
+
+		// Count the species that arise and die out as it happens, rather than working it out from the agents
+		final int[] speciesEvents = new int[2];
+		w.addListener(new WorldListener() {
+			@Override
+			public void onSpeciesCreated(World world, int speciesId, int parentId) {
+				speciesEvents[0]++;
 			}
-			w.regenerateAgents(mutate);
-			// See if the dominant species has changed
-			if(w.getDominator() != dominator) {
-				dominator = w.getDominator();
-				System.out.println((g+1) + "\t" + dominator.getBrightness() + "\t" + dominator.getContrast() + "\t" + dominator.getMotility() + "\t" + dominator.getDirectedness() );			
+
+			@Override
+			public void onSpeciesExtinct(World world, int speciesId) {
+				speciesEvents[1]++;
 			}
+		}, false);
+
+		RunJournalWriter journal = null;
+		if(journalFile != null) {
+			config.setProperty("checkpoint", Integer.toString(checkpointInterval));
+			journal = new RunJournalWriter(Paths.get(journalFile), config, rng);
+		}
+		
+		for(int g=0; g<generations; g++) {
+			if(journal != null && g % checkpointInterval == 0) journal.checkpoint(w);
+			w.evolve(setup.sweeps, mutate);
+			stats.publish(w.getSummary());
+		}
+		stats.close();
+		if(trajectory != null) trajectory.close();
+		if(journal != null) journal.close();
+		log.awaitFinished();
+		out.println("# " + speciesEvents[0] + " species arose and " + speciesEvents[1] + " died out");
+		if(fastForward) out.println("# fast-forwarded " + w.getFastForwardedGenerations() + " of " + generations + " generations");
+		if(setup.surrogate != null) {
+			out.println("# surrogate table has " + setup.surrogate.getCellCount() + " cells, " + setup.surrogate.getMeasuredCount() + " measured in this run");
+			setup.surrogate.close();
+		}
+		if(store != null) {
+			store.awaitClosed();
+			if(store.getFailure() != null) throw store.getFailure();
+		}
+		if(cache != null) {
+			out.flush();
+			cache.put(cacheKey, captured.toByteArray());
 		}
 	}
 	
@@ -148,7 +448,7 @@ public class Batch {
 		
 	}
 	
-	public static void main(String args[]) {
+	public static void main(String args[]) throws IOException {
 		doBCMD(args);
 		//doGetFoodBenefit(args);
 	} 
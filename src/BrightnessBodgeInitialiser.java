@@ -1,3 +1,7 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import simulation.Agent;
@@ -13,9 +17,17 @@ import simulation.World;
 
 public class BrightnessBodgeInitialiser extends FoodInitialiser {
 	
+	// Brightnesses shared by at least this many agents of a generation get a precomputed sampler
+	private static final int SAMPLER_MIN_AGENTS = 16;
+	// Tail probability beyond which a sampler's table stops
+	private static final double SAMPLER_TAIL = 1e-6;
+
 	private Random rng;
 	private double rho, alpha, beta;
 	private int T;
+
+	// Samplers for the brightnesses in the most recent generation, keyed by the bits of the brightness
+	private Map<Long, Sampler> samplers = new HashMap<Long, Sampler>();
 	
 	public BrightnessBodgeInitialiser(Random rng, double rho, double alpha, double beta, int T) {
 		this.rng = rng;
@@ -25,10 +37,57 @@ public class BrightnessBodgeInitialiser extends FoodInitialiser {
 		this.T = T;
 	}
 
+	/**
+	 * Draws food from the distribution for one non-zero brightness by table lookup.  Truncating an exponential to an
+	 * integer gives a geometric distribution, so the distribution is discrete: its cumulative probabilities are tabulated
+	 * up to a small tail, with a guide table to find the right entry quickly.  Draws in the tail use the fact that the
+	 * exponential is memoryless.
+	 */
+	private class Sampler {
+		private final double mean;
+		private final double[] cdf;
+		private final int[] guide;
+
+		Sampler(double brightness) {
+			double p0 = alpha * Math.exp(-beta * brightness);
+			mean = (rho * T) / (1.0 - p0);
+			double q = Math.exp(-1.0 / mean);
+			// P(0) includes the delta; thereafter P(k) = (1-p0)(1-q)q^k
+			double[] c = new double[64];
+			double pk = (1.0 - p0) * (1.0 - q), tail = (1.0 - p0) * q;
+			c[0] = p0 + pk;
+			int n = 1;
+			while(tail > SAMPLER_TAIL) {
+				pk *= q;
+				tail *= q;
+				if(n == c.length) c = Arrays.copyOf(c, 2 * n);
+				c[n] = c[n-1] + pk;
+				n++;
+			}
+			cdf = Arrays.copyOf(c, n);
+			guide = new int[n];
+			for(int i=0, k=0; i<n; i++) {
+				while(k < n-1 && cdf[k] <= (double)i / n) k++;
+				guide[i] = k;
+			}
+		}
+
+		int draw() {
+			double u = rng.nextDouble();
+			int k = guide[(int)(u * guide.length)];
+			while(k < cdf.length && cdf[k] <= u) k++;
+			if(k < cdf.length) return k;
+			return cdf.length + (int)(-mean * Math.log(1.0 - rng.nextDouble()));
+		}
+	}
+
 	@Override
 	public void assignFood(Agent agent) {
 		double brightness = agent.getBrightness();
-		if(brightness == 0.0) {
+		Sampler s = samplers.get(Double.doubleToLongBits(brightness));
+		if(s != null) {
+			agent.setFoodConsumed(s.draw());
+		} else if(brightness == 0.0) {
 			// Generate from bimodal distribution: generate T with probability rho, and 0 otherwise
 			agent.setFoodConsumed(rng.nextDouble() < rho ? T : 0);
 		} else {
@@ -37,6 +96,31 @@ public class BrightnessBodgeInitialiser extends FoodInitialiser {
 			agent.setFoodConsumed(rng.nextDouble() < p0 ? 0 : (int)( (rho * T)/(p0 - 1.0) * Math.log(1.0-rng.nextDouble()) ) ) ;
 		}
 	}
+
+	/**
+	 * Agents inherit their brightness, so a generation has only a few distinct values.  Those common enough get a
+	 * sampler, which is kept for as long as each generation still has them.
+	 */
+	@Override
+	public void assignFood(List<Agent> agents, int from, int to) {
+		Map<Long, int[]> counts = new HashMap<Long, int[]>();
+		for(int i=from; i<to; i++) {
+			double brightness = agents.get(i).getBrightness();
+			if(brightness == 0.0) continue;
+			Long key = Double.doubleToLongBits(brightness);
+			int[] n = counts.get(key);
+			if(n == null) counts.put(key, n = new int[1]);
+			n[0]++;
+		}
+		Map<Long, Sampler> used = new HashMap<Long, Sampler>();
+		for(Map.Entry<Long, int[]> e : counts.entrySet()) {
+			if(e.getValue()[0] < SAMPLER_MIN_AGENTS) continue;
+			Sampler s = samplers.get(e.getKey());
+			used.put(e.getKey(), s != null ? s : new Sampler(Double.longBitsToDouble(e.getKey())));
+		}
+		samplers = used;
+		super.assignFood(agents, from, to);
+	}
 	
 	
 	public static void main(String args[]) {
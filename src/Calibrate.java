@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import simulation.Agent;
+import simulation.World;
+import storage.ResultCache;
+
+/**
+ * Measures the distribution of food consumed in one generation over a grid of genotypes, and fits to each the
+ * delta-plus-exponential model used by BrightnessBodgeInitialiser: no food with probability p0, and otherwise an
+ * exponentially distributed amount.  Grid points are run in parallel, and the food consumed is accumulated in a
+ * histogram rather than printed, so only the fitted parameters are written out.
+ *
+ * Usage: java Calibrate [contrast=<values>] [brightness=<values>] [motility=<values>] [directedness=<values>]
+ *        [generations=<n>] [seed=<n>] [threads=<n>] [out=<file>] [cache=<dir>] [cachesize=<MB>]
+ *
+ * Values are either a comma-separated list or lo:hi:step; by default motility runs over 0:1:0.25 and the other
+ * behaviours are 0.  The world size, number of agents and food sites, and sweeps per generation match Batch.
+ *
+ * The output has one line per grid point:
+ *
+ * contrast brightness motility directedness samples mean p0 nonzero-mean
+ *
+ * followed, wherever brightness was varied, by the alpha and beta of the fit p0 = alpha exp(-beta brightness) that
+ * BrightnessBodgeInitialiser takes.
+ *
+ * With cache=<dir> and a seed given, the histogram for each grid point is looked up in a cache of results (see
+ * storage.ResultCache) and only measured if it is not there, so overlapping grids need not be measured twice.
+ *
+ * @author richard
+ *
+ */
+
+public class Calibrate {
+
+	// Food consumed by agents of one genotype over many generations
+	private static class GridPoint implements Callable<long[]> {
+		private final Properties config;
+		private final double contrast, brightness, motility, directedness;
+		private final int generations;
+		private final long seed;
+
+		GridPoint(Properties config, double contrast, double brightness, double motility, double directedness, int generations, long seed) {
+			this.config = config;
+			this.contrast = contrast;
+			this.brightness = brightness;
+			this.motility = motility;
+			this.directedness = directedness;
+			this.generations = generations;
+			this.seed = seed;
+		}
+
+		@Override
+		public long[] call() {
+			int size = Integer.parseInt(config.getProperty("size"));
+			int agents = Integer.parseInt(config.getProperty("agents"));
+			int sweeps = Integer.parseInt(config.getProperty("sweeps"));
+
+			World w = new World();
+			w.setWorldRNG(new Random(seed));
+			w.setEngine(World.Engine.HYBRID);
+			w.setSize(size, size);
+			w.assignFood(Integer.parseInt(config.getProperty("foodSites")));
+
+			// Histogram of food consumed; grows if an agent is lucky enough to eat more than once per sweep
+			long[] counts = new long[sweeps + 1];
+			for(int g=0; g<generations; g++) {
+				w.assignAgents(agents, brightness, contrast, motility, directedness);
+				w.shuffleFood();
+				w.sweeps(sweeps);
+				for(Agent a : w.getAgents()) {
+					int f = a.getFoodConsumed();
+					if(f >= counts.length) counts = Arrays.copyOf(counts, Math.max(f + 1, 2 * counts.length));
+					counts[f]++;
+				}
+			}
+			return counts;
+		}
+	}
+
+	// Everything that determines the histogram for a grid point, to look it up by
+	private static Properties pointConfig(Properties config, double contrast, double brightness, double motility, double directedness, int generations, long seed) {
+		Properties p = new Properties();
+		p.setProperty("run", "calibrate");
+		for(String k : new String[]{ "size", "agents", "foodSites", "sweeps" }) p.setProperty(k, config.getProperty(k));
+		p.setProperty("contrast", Double.toString(contrast));
+		p.setProperty("brightness", Double.toString(brightness));
+		p.setProperty("motility", Double.toString(motility));
+		p.setProperty("directedness", Double.toString(directedness));
+		p.setProperty("generations", Integer.toString(generations));
+		p.setProperty("seed", Long.toString(seed));
+		return p;
+	}
+
+	// A histogram as held in the cache: the counts as text, separated by spaces
+	private static byte[] encode(long[] counts) {
+		StringBuilder s = new StringBuilder();
+		for(int f=0; f<counts.length; f++) s.append(f == 0 ? "" : " ").append(counts[f]);
+		return s.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static long[] decode(byte[] b) {
+		if(b == null) return null;
+		String[] l = new String(b, StandardCharsets.UTF_8).trim().split(" ");
+		long[] counts = new long[l.length];
+		for(int f=0; f<l.length; f++) counts[f] = Long.parseLong(l[f]);
+		return counts;
+	}
+
+	// Parse a comma-separated list or lo:hi:step
+	private static double[] parseValues(String s) {
+		if(s.indexOf(':') >= 0) {
+			String[] r = s.split(":");
+			double lo = Double.parseDouble(r[0]), hi = Double.parseDouble(r[1]), step = Double.parseDouble(r[2]);
+			int n = (int)Math.floor((hi - lo) / step + 1e-9) + 1;
+			double[] v = new double[n];
+			for(int k=0; k<n; k++) v[k] = lo + k * step;
+			return v;
+		}
+		String[] l = s.split(",");
+		double[] v = new double[l.length];
+		for(int k=0; k<l.length; k++) v[k] = Double.parseDouble(l[k]);
+		return v;
+	}
+
+	public static void main(String args[]) throws IOException, InterruptedException {
+		double[] contrast = {0.0}, brightness = {0.0}, motility = parseValues("0:1:0.25"), directedness = {0.0};
+		Properties config = Batch.defaultConfig("");
+		int generations = Integer.parseInt(config.getProperty("generations"));
+		int threads = Runtime.getRuntime().availableProcessors();
+		long seed = new Random().nextLong();
+		String outFile = null, cacheDir = null;
+		boolean seeded = false;
+		long cacheBudget = ResultCache.DEFAULT_BUDGET;
+		for(String t : args) {
+			if(t.startsWith("contrast=")) contrast = parseValues(t.substring("contrast=".length()));
+			else if(t.startsWith("brightness=")) brightness = parseValues(t.substring("brightness=".length()));
+			else if(t.startsWith("motility=")) motility = parseValues(t.substring("motility=".length()));
+			else if(t.startsWith("directedness=")) directedness = parseValues(t.substring("directedness=".length()));
+			else if(t.startsWith("generations=")) generations = Integer.parseInt(t.substring("generations=".length()));
+			else if(t.startsWith("seed=")) {
+				seed = Long.parseLong(t.substring("seed=".length()));
+				seeded = true;
+			}
+			else if(t.startsWith("threads=")) threads = Integer.parseInt(t.substring("threads=".length()));
+			else if(t.startsWith("out=")) outFile = t.substring("out=".length());
+			else if(t.startsWith("cache=")) cacheDir = t.substring("cache=".length());
+			else if(t.startsWith("cachesize=")) cacheBudget = Long.parseLong(t.substring("cachesize=".length())) << 20;
+			else {
+				System.err.println("usage: Calibrate [contrast=<values>] [brightness=<values>] [motility=<values>] [directedness=<values>] [generations=<n>] [seed=<n>] [threads=<n>] [out=<file>] [cache=<dir>] [cachesize=<MB>]");
+				return;
+			}
+		}
+
+		// Results can only be reused if the seed was given rather than made up
+		ResultCache cache = null;
+		if(cacheDir != null) {
+			if(seeded) cache = new ResultCache(Paths.get(cacheDir), cacheBudget);
+			else System.err.println("# not cached: only runs with a seed are cached");
+		}
+
+		// Grid points in the order contrast, brightness, motility, directedness, with the last varying fastest
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<double[]> points = new ArrayList<double[]>();
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		// Keys of the grid points to be stored once measured, null for those found in the cache
+		List<String> keys = new ArrayList<String>();
+		for(double c : contrast) for(double b : brightness) for(double m : motility) for(double d : directedness) {
+			points.add(new double[]{ c, b, m, d });
+			long pointSeed = seed + points.size();
+			long[] cached = null;
+			String key = null;
+			if(cache != null) {
+				key = ResultCache.key(pointConfig(config, c, b, m, d, generations, pointSeed));
+				cached = decode(cache.get(key));
+			}
+			keys.add(cached == null ? key : null);
+			if(cached != null) results.add(CompletableFuture.completedFuture(cached));
+			else results.add(pool.submit(new GridPoint(config, c, b, m, d, generations, pointSeed)));
+		}
+		pool.shutdown();
+
+		PrintStream out = outFile == null ? System.out : new PrintStream(outFile);
+		out.println("# size=" + config.getProperty("size") + " agents=" + config.getProperty("agents") + " foodSites=" + config.getProperty("foodSites")
+				+ " sweeps=" + config.getProperty("sweeps") + " generations=" + generations + " seed=" + seed);
+		out.println("# contrast\tbrightness\tmotility\tdirectedness\tsamples\tmean\tp0\tnonzero-mean");
+		double[] p0 = new double[points.size()];
+		for(int k=0; k<points.size(); k++) {
+			long[] counts;
+			try {
+				counts = results.get(k).get();
+			} catch(ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+			if(keys.get(k) != null) cache.put(keys.get(k), encode(counts));
+			long n = 0, total = 0;
+			for(int f=0; f<counts.length; f++) {
+				n += counts[f];
+				total += f * counts[f];
+			}
+			// The mean of the exponential part is the mean over the agents that ate anything
+			p0[k] = (double)counts[0] / n;
+			double[] p = points.get(k);
+			out.println(p[0] + "\t" + p[1] + "\t" + p[2] + "\t" + p[3] + "\t" + n + "\t" + (double)total / n + "\t" + p0[k] + "\t"
+					+ (n > counts[0] ? (double)total / (n - counts[0]) : 0.0));
+		}
+
+		// Least-squares fit of log p0 against brightness, over the non-zero brightnesses, for each combination of the other behaviours
+		if(brightness.length > 1) {
+			for(int c=0; c<contrast.length; c++) for(int m=0; m<motility.length; m++) for(int d=0; d<directedness.length; d++) {
+				double sx = 0.0, sy = 0.0, sxx = 0.0, sxy = 0.0;
+				int n = 0;
+				for(int b=0; b<brightness.length; b++) {
+					int k = ((c * brightness.length + b) * motility.length + m) * directedness.length + d;
+					if(brightness[b] == 0.0 || p0[k] == 0.0) continue;
+					double y = Math.log(p0[k]);
+					sx += brightness[b]; sy += y; sxx += brightness[b] * brightness[b]; sxy += brightness[b] * y;
+					n++;
+				}
+				if(n < 2) continue;
+				double slope = (n * sxy - sx * sy) / (n * sxx - sx * sx);
+				double alpha = Math.exp((sy - slope * sx) / n);
+				out.println("# fit contrast=" + contrast[c] + " motility=" + motility[m] + " directedness=" + directedness[d] + ": alpha=" + alpha + " beta=" + -slope);
+			}
+		}
+		if(out != System.out) out.close();
+	}
+
+}
@@ -0,0 +1,69 @@
+import java.util.Random;
+
+import simulation.Agent;
+import simulation.World;
+
+/**
+ * Times sweeps with each way of drawing random steps (see World.DrawOrder), over a range of motilities, in a
+ * population that neither signals nor follows lights, so that nearly all the time goes on the updates themselves.
+ * The two ways give the same results statistically, so the mean food consumed per agent is printed alongside, as a
+ * check that they agree within noise.
+ *
+ * Usage: java DrawOrderBenchmark [motility=<m,m,...>] [agents=<n>] [sweeps=<n>] [repeats=<n>]
+ *
+ * The output has one line per motility:
+ *
+ * motility updates-per-us(legacy) food(legacy) updates-per-us(table) food(table)
+ *
+ * @author richard
+ *
+ */
+
+public class DrawOrderBenchmark {
+
+	public static void main(String args[]) {
+		double[] motility = { 0.1, 0.5, 1.0 };
+		int agents = 2000, sweeps = 500, repeats = 5;
+		for(String t : args) {
+			if(t.startsWith("motility=")) {
+				String[] l = t.substring("motility=".length()).split(",");
+				motility = new double[l.length];
+				for(int k=0; k<l.length; k++) motility[k] = Double.parseDouble(l[k]);
+			}
+			else if(t.startsWith("agents=")) agents = Integer.parseInt(t.substring("agents=".length()));
+			else if(t.startsWith("sweeps=")) sweeps = Integer.parseInt(t.substring("sweeps=".length()));
+			else if(t.startsWith("repeats=")) repeats = Integer.parseInt(t.substring("repeats=".length()));
+			else {
+				System.err.println("usage: DrawOrderBenchmark [motility=<m,m,...>] [agents=<n>] [sweeps=<n>] [repeats=<n>]");
+				return;
+			}
+		}
+
+		System.out.println("# agents=" + agents + " sweeps=" + sweeps + " repeats=" + repeats);
+		System.out.println("# motility\tlegacy\tfood\ttable\tfood");
+		for(double m : motility) {
+			StringBuilder line = new StringBuilder(Double.toString(m));
+			for(World.DrawOrder order : World.DrawOrder.values()) {
+				long nanos = 0, food = 0;
+				for(int r=0; r<repeats; r++) {
+					World w = new World();
+					w.setWorldRNG(new Random(r));
+					w.setSize(51, 51);
+					w.assignFood(10);
+					w.assignAgents(agents, 0.0, 0.0, m, 0.0);
+					w.setDrawOrder(order);
+					// With no lights on, this makes the search for one nearly free
+					w.setLightSearch(World.LightSearch.KINETIC);
+					long start = System.nanoTime();
+					w.sweeps(sweeps);
+					nanos += System.nanoTime() - start;
+					for(Agent a : w.getAgents()) food += a.getFoodConsumed();
+				}
+				line.append("\t" + String.format("%.1f", (double)agents * sweeps * repeats / (nanos / 1e3)));
+				line.append("\t" + String.format("%.2f", (double)food / agents / repeats));
+			}
+			System.out.println(line);
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+import java.util.Random;
+
+import simulation.Agent;
+import simulation.World;
+
+/**
+ * Times sweeps with each of the ways of finding the nearest light (see World.LightSearch), over a range of numbers
+ * of agents and brightnesses, in a single-species population that follows lights.  Since all the ways of searching
+ * give the same answers, each run from the same seed must end in the same state, and this is checked.  With
+ * engine=synchronous the sweeps are run by the SYNCHRONOUS engine and the FIELD search is timed too; since jump
+ * flooding is not quite exact, a run with it can occasionally end in a different state.
+ *
+ * Usage: java LightSearchBenchmark [agents=<n,n,...>] [brightness=<b,b,...>] [sweeps=<n>] [size=<n>] [engine=<e>]
+ *
+ * The output has one line per combination:
+ *
+ * agents brightness lit-fraction ms-per-sweep(scan) ms-per-sweep(grid) ms-per-sweep(kinetic) ms-per-sweep(packed)
+ * [ms-per-sweep(field)]
+ *
+ * @author richard
+ *
+ */
+
+public class LightSearchBenchmark {
+
+	private static int[] parseInts(String s) {
+		String[] l = s.split(",");
+		int[] v = new int[l.length];
+		for(int k=0; k<l.length; k++) v[k] = Integer.parseInt(l[k]);
+		return v;
+	}
+
+	private static double[] parseDoubles(String s) {
+		String[] l = s.split(",");
+		double[] v = new double[l.length];
+		for(int k=0; k<l.length; k++) v[k] = Double.parseDouble(l[k]);
+		return v;
+	}
+
+	public static void main(String args[]) {
+		int[] agents = { 200, 1000, 4000 };
+		double[] brightness = { 0.01, 0.1, 1.0 };
+		int sweeps = 50, size = 51;
+		World.Engine engine = World.Engine.SEQUENTIAL;
+		for(String t : args) {
+			if(t.startsWith("agents=")) agents = parseInts(t.substring("agents=".length()));
+			else if(t.startsWith("brightness=")) brightness = parseDoubles(t.substring("brightness=".length()));
+			else if(t.startsWith("sweeps=")) sweeps = Integer.parseInt(t.substring("sweeps=".length()));
+			else if(t.startsWith("size=")) size = Integer.parseInt(t.substring("size=".length()));
+			else if(t.startsWith("engine=")) engine = World.Engine.valueOf(t.substring("engine=".length()).toUpperCase());
+			else {
+				System.err.println("usage: LightSearchBenchmark [agents=<n,n,...>] [brightness=<b,b,...>] [sweeps=<n>] [size=<n>] [engine=<e>]");
+				return;
+			}
+		}
+
+		boolean synchronous = engine == World.Engine.SYNCHRONOUS;
+		System.out.println("# size=" + size + " sweeps=" + sweeps + " engine=" + engine.toString().toLowerCase());
+		System.out.println("# agents\tbrightness\tlit\tscan\tgrid\tkinetic\tpacked" + (synchronous ? "\tfield" : ""));
+		for(int n : agents) {
+			for(double b : brightness) {
+				StringBuilder line = new StringBuilder(n + "\t" + b);
+				long reference = 0;
+				double lit = 0.0;
+				for(World.LightSearch search : World.LightSearch.values()) {
+					// The field is only used by the synchronous engine
+					if(search == World.LightSearch.FIELD && !synchronous) continue;
+					World w = new World();
+					w.setWorldRNG(new Random(n * 31 + Double.hashCode(b)));
+					w.setSize(size, size);
+					w.assignFood(10);
+					w.assignAgents(n, b, 0.0, 1.0, 1.0);
+					w.setLightSearch(search);
+					w.setEngine(engine);
+					// Let the lights come on before timing
+					w.sweeps(5);
+
+					long start = System.nanoTime();
+					w.sweeps(sweeps);
+					double ms = (System.nanoTime() - start) / 1e6 / sweeps;
+
+					long state = 0;
+					int on = 0;
+					for(Agent a : w.getAgents()) {
+						state = state * 31 + a.getX() * size + a.getY() + (a.isLightOn() ? 1 : 0);
+						if(a.isLightOn()) on++;
+					}
+					if(search == World.LightSearch.SCAN) {
+						reference = state;
+						lit = (double)on / n;
+						line.append("\t" + String.format("%.3f", lit));
+					} else if(state != reference) {
+						System.err.println("# " + search + " ended in a different state from SCAN with " + n + " agents, brightness " + b
+								+ (search == World.LightSearch.FIELD ? " (the field is approximate)" : ""));
+					}
+					line.append("\t" + String.format("%.3f", ms));
+				}
+				System.out.println(line);
+			}
+		}
+	}
+
+}
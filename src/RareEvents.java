@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Properties;
+import java.util.function.ToDoubleFunction;
+
+import simulation.Agent;
+import simulation.CheckpointableRandom;
+import simulation.ForwardFlux;
+import simulation.World;
+
+/**
+ * Measures the rate of a transition that brute-force runs of Batch seldom or never see, such as into honest
+ * signalling at a high cost, by forward flux sampling (see simulation.ForwardFlux).  The worlds are set up as Batch
+ * sets them up from the same initial condition string; the order parameter is the fraction of agents whose traits
+ * all lie within a tolerance of a target strategy, given in the same way as an initial condition.  The transition is
+ * complete once this reaches the last interface, by default the dominance threshold.
+ *
+ * Usage: java RareEvents <ic> target=<ic> [interfaces=<l,l,...>] [tolerance=<t>] [crossings=<n>] [walkers=<n>]
+ * [trials=<n>] [max=<n>] [seed=<n>] [threads=<n>] [engine=<e>] [lights=<l>] [moran=<rate>]
+ *
+ * For instance, "java RareEvents m target=bcm" measures the rate at which a population of motile agents that do not
+ * signal comes to be dominated by honest signallers.  The output gives the flux out of the starting basin, the
+ * probability of reaching each interface from the one before, and the rate of the transition per generation, with
+ * its standard error, along with the mean time it takes.
+ *
+ * @author richard
+ *
+ */
+
+public class RareEvents {
+
+	// Traits of the strategy given by an initial condition string: on if its letter appears, off otherwise
+	private static double[] strategy(String ic) {
+		ic = ic.toLowerCase();
+		return new double[] { ic.indexOf('c') >= 0 ? 1.0 : 0.0, ic.indexOf('b') >= 0 ? 1.0 : 0.0,
+				ic.indexOf('m') >= 0 ? 1.0 : 0.0, ic.indexOf('d') >= 0 ? 1.0 : 0.0 };
+	}
+
+	public static void main(String args[]) throws InterruptedException {
+		String userIC = "", target = null, engine = null, lights = null, moran = null;
+		double[] interfaces = { 0.05, 0.1, 0.2, 0.35, 0.5, 0.75 };
+		double tolerance = 0.25;
+		int crossings = 100, walkers = 10, trials = 100, maxGenerations = 100000;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long seed = 1;
+		for(String t : args) {
+			if(t.startsWith("target=")) target = t.substring("target=".length());
+			else if(t.startsWith("interfaces=")) {
+				String[] l = t.substring("interfaces=".length()).split(",");
+				interfaces = new double[l.length];
+				for(int k=0; k<l.length; k++) interfaces[k] = Double.parseDouble(l[k]);
+			}
+			else if(t.startsWith("tolerance=")) tolerance = Double.parseDouble(t.substring("tolerance=".length()));
+			else if(t.startsWith("crossings=")) crossings = Integer.parseInt(t.substring("crossings=".length()));
+			else if(t.startsWith("walkers=")) walkers = Integer.parseInt(t.substring("walkers=".length()));
+			else if(t.startsWith("trials=")) trials = Integer.parseInt(t.substring("trials=".length()));
+			else if(t.startsWith("max=")) maxGenerations = Integer.parseInt(t.substring("max=".length()));
+			else if(t.startsWith("seed=")) seed = Long.parseLong(t.substring("seed=".length()));
+			else if(t.startsWith("threads=")) threads = Integer.parseInt(t.substring("threads=".length()));
+			else if(t.startsWith("engine=")) engine = t.substring("engine=".length());
+			else if(t.startsWith("lights=")) lights = t.substring("lights=".length());
+			else if(t.startsWith("moran=")) moran = t.substring("moran=".length());
+			else userIC += t.toLowerCase();
+		}
+		if(target == null) {
+			System.err.println("usage: RareEvents <ic> target=<ic> [interfaces=<l,l,...>] [tolerance=<t>] [crossings=<n>] [walkers=<n>] [trials=<n>] [max=<n>] [seed=<n>] [threads=<n>] [engine=<e>] [lights=<l>] [moran=<rate>]");
+			return;
+		}
+
+		Properties config = Batch.defaultConfig(userIC);
+		if(engine != null) config.setProperty("engine", engine);
+		if(lights != null) config.setProperty("lightSearch", lights);
+		if(moran != null) config.setProperty("moranRate", moran);
+		// Each world gets a generator of its own, which the sampler reseeds for every trial
+		Batch.Setup setup;
+		try {
+			setup = Batch.setupWorld(config, new CheckpointableRandom(seed));
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if(setup.surrogate != null) throw new IllegalArgumentException("surrogate tables are not supported");
+		int sweeps = setup.sweeps;
+		double mutate = Double.parseDouble(config.getProperty("mutate"));
+
+		double[] goal = strategy(target);
+		final double tol = tolerance;
+		ToDoubleFunction<World> order = w -> {
+			int near = 0;
+			for(Agent a : w.getAgents()) {
+				if(Math.abs(a.getContrast() - goal[0]) <= tol && Math.abs(a.getBrightness() - goal[1]) <= tol
+						&& Math.abs(a.getMotility() - goal[2]) <= tol && Math.abs(a.getDirectedness() - goal[3]) <= tol) near++;
+			}
+			return (double)near / w.getAgents().size();
+		};
+
+		ForwardFlux ffs = new ForwardFlux(() -> {
+			try {
+				return Batch.setupWorld(config, new CheckpointableRandom()).world;
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, order, interfaces, sweeps, mutate);
+		ffs.setMaxGenerations(maxGenerations);
+
+		System.out.println("# ic=" + setup.parseIC + " target=" + target.toUpperCase() + " cost=" + setup.cost + " bodge=" + setup.bodge
+				+ " sweeps=" + sweeps + " tolerance=" + tolerance + " seed=" + seed);
+		ForwardFlux.Result r = ffs.run(setup.world, crossings, walkers, trials, seed, threads);
+
+		System.out.println("# flux " + r.flux + " per generation (" + r.crossings + " crossings of " + interfaces[0] + " in " + r.generations + " generations)");
+		for(int i=1; i<interfaces.length; i++) {
+			System.out.println(interfaces[i] + "\t" + r.getProbability(i) + "\t" + r.successes[i-1] + "/" + r.trials[i-1]);
+		}
+		if(r.truncated > 0) System.out.println("# " + r.truncated + " trials given up after " + maxGenerations + " generations");
+		System.out.println("# rate " + r.rate + " +- " + r.rateError + " per generation, mean time " + (r.rate > 0.0 ? 1.0 / r.rate : Double.POSITIVE_INFINITY) + " generations");
+	}
+
+}
@@ -0,0 +1,84 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import simulation.Agent;
+import simulation.ReplicaBatch;
+import simulation.World;
+
+/**
+ * Times a number of replicas of the usual small world evolving for some generations, first one after another and
+ * then together in a ReplicaBatch, and checks that every replica ends in the same state both ways.
+ *
+ * Usage: java ReplicaBenchmark [replicas=<n>] [agents=<n>] [size=<n>] [sweeps=<n>] [generations=<n>] [brightness=<b>]
+ *
+ * @author richard
+ *
+ */
+
+public class ReplicaBenchmark {
+
+	private static List<World> replicas(int n, int size, int agents, double brightness) {
+		List<World> worlds = new ArrayList<World>();
+		for(int r=0; r<n; r++) {
+			World w = new World();
+			w.setWorldRNG(new Random(r));
+			w.setSize(size, size);
+			w.setBrightnessMutability(true);
+			w.setContrastMutability(true);
+			w.setMotilityMutability(true);
+			w.setDirectednessMutability(true);
+			w.assignFood(size * size / 260);
+			w.assignAgents(agents, brightness, 0.0, 1.0, 1.0);
+			worlds.add(w);
+		}
+		return worlds;
+	}
+
+	private static long state(World w) {
+		long state = w.getGenerations();
+		for(Agent a : w.getAgents()) {
+			state = state * 31 + a.getX() * w.getSizeY() + a.getY();
+			state = state * 31 + a.getFoodConsumed() + (a.isLightOn() ? 1 : 0) + a.getSpeciesId();
+		}
+		return state;
+	}
+
+	public static void main(String args[]) {
+		int replicas = 64, agents = 200, size = 51, sweeps = 200, generations = 5;
+		double brightness = 0.5, mutate = 0.01;
+		for(String t : args) {
+			if(t.startsWith("replicas=")) replicas = Integer.parseInt(t.substring("replicas=".length()));
+			else if(t.startsWith("agents=")) agents = Integer.parseInt(t.substring("agents=".length()));
+			else if(t.startsWith("size=")) size = Integer.parseInt(t.substring("size=".length()));
+			else if(t.startsWith("sweeps=")) sweeps = Integer.parseInt(t.substring("sweeps=".length()));
+			else if(t.startsWith("generations=")) generations = Integer.parseInt(t.substring("generations=".length()));
+			else if(t.startsWith("brightness=")) brightness = Double.parseDouble(t.substring("brightness=".length()));
+			else {
+				System.err.println("usage: ReplicaBenchmark [replicas=<n>] [agents=<n>] [size=<n>] [sweeps=<n>] [generations=<n>] [brightness=<b>]");
+				return;
+			}
+		}
+
+		List<World> single = replicas(replicas, size, agents, brightness);
+		long start = System.nanoTime();
+		for(World w : single) {
+			for(int g=0; g<generations; g++) w.evolve(sweeps, mutate);
+		}
+		double separate = (System.nanoTime() - start) / 1e6;
+
+		ReplicaBatch batch = new ReplicaBatch(replicas(replicas, size, agents, brightness));
+		start = System.nanoTime();
+		for(int g=0; g<generations; g++) batch.evolve(sweeps, mutate);
+		double together = (System.nanoTime() - start) / 1e6;
+
+		int differ = 0;
+		for(int r=0; r<replicas; r++) {
+			if(state(single.get(r)) != state(batch.getReplicas().get(r))) differ++;
+		}
+		System.out.println("# replicas=" + replicas + " agents=" + agents + " size=" + size + " sweeps=" + sweeps + " generations=" + generations + " brightness=" + brightness);
+		System.out.println(String.format("separately %.0f ms, batched %.0f ms, speedup %.2f", separate, together, separate / together));
+		if(differ > 0) System.err.println("# " + differ + " replicas ended in a different state when batched");
+	}
+
+}
@@ -0,0 +1,149 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import simulation.CheckpointableRandom;
+import simulation.World;
+import storage.RunJournalReader;
+import storage.TrajectoryRecorder;
+
+/**
+ * Re-simulates parts of a run recorded with Batch journal=<file>, starting from the nearest checkpoint before each
+ * part.  The parts are independent, so are run in parallel.  This reproduces the original run exactly, so can be
+ * used to obtain full trajectories of just the interesting parts of a long run, e.g., around changes of dominance.
+ *
+ * Usage: java Resimulate journal-file [from-to ...] [changes=<Batch output> window=<n>] [trajectory=<prefix>] [threads=<n>]
+ *
+ * A range from-to covers the sweeps of generations from, from+1, ..., to-1, ending with the regeneration into
+ * generation to.  With changes=<file>, a range of window generations (default 10) is added leading up to each
+ * change of dominance listed in the output of a Batch run.  With trajectory=<prefix>, each range is recorded to
+ * the file <prefix><from>-<to>.fft.  The changes of dominance found in each range are printed in the same format
+ * as Batch, so can be checked against the original output.
+ *
+ * @author richard
+ *
+ */
+
+public class Resimulate {
+
+	// Re-simulate one range, returning the dominance changes seen in it
+	private static class Range implements Callable<String> {
+		private final RunJournalReader journal;
+		private final int from, to;
+		private final String trajectoryPrefix;
+
+		Range(RunJournalReader journal, int from, int to, String trajectoryPrefix) {
+			this.journal = journal;
+			this.from = from;
+			this.to = to;
+			this.trajectoryPrefix = trajectoryPrefix;
+		}
+
+		@Override
+		public String call() throws IOException {
+			Properties config = journal.getConfig();
+			int k = journal.findCheckpoint(from);
+			if(k < 0) throw new IOException("no checkpoint at or before generation " + from);
+
+			CheckpointableRandom rng = new CheckpointableRandom();
+			Batch.Setup setup = Batch.setupWorld(config, rng);
+			World w = setup.world;
+			journal.restore(k, w, rng);
+
+			int sweeps = setup.sweeps;
+			double mutate = Double.parseDouble(config.getProperty("mutate"));
+			StringBuilder out = new StringBuilder();
+			out.append("# generations ").append(from).append("-").append(to).append(" from checkpoint at ").append(journal.getGeneration(k)).append('\n');
+
+			TrajectoryRecorder trajectory = null;
+			int dominator = w.getDominator().getSpeciesId();
+			try {
+				while(w.getGenerations() < to) {
+					if(w.getGenerations() == from && trajectoryPrefix != null) {
+						trajectory = new TrajectoryRecorder(Paths.get(trajectoryPrefix + from + "-" + to + TrajectoryRecorder.EXTENSION));
+						w.setRecorder(trajectory);
+					}
+					w.evolve(sweeps, mutate);
+					if(w.getDominator().getSpeciesId() != dominator) {
+						dominator = w.getDominator().getSpeciesId();
+						if(w.getGenerations() > from) {
+							World.Summary s = w.getSummary();
+							out.append(s.generation + "\t" + s.domBrightness + "\t" + s.domContrast + "\t" + s.domMotility + "\t" + s.domDirectedness).append('\n');
+						}
+					}
+				}
+			} finally {
+				if(trajectory != null) trajectory.close();
+				if(setup.surrogate != null) setup.surrogate.close();
+			}
+			return out.toString();
+		}
+	}
+
+	// Read the generations at which dominance changed from the output of Batch
+	private static List<Integer> readChanges(String file) throws IOException {
+		List<Integer> changes = new ArrayList<Integer>();
+		try(BufferedReader in = Files.newBufferedReader(Paths.get(file))) {
+			String line;
+			while((line = in.readLine()) != null) {
+				if(line.startsWith("#") || line.trim().isEmpty()) continue;
+				int g = Integer.parseInt(line.split("\t")[0].trim());
+				if(g > 0) changes.add(g);
+			}
+		}
+		return changes;
+	}
+
+	public static void main(String args[]) throws IOException, InterruptedException {
+		if(args.length < 1) {
+			System.err.println("usage: Resimulate journal-file [from-to ...] [changes=<file> window=<n>] [trajectory=<prefix>] [threads=<n>]");
+			return;
+		}
+		String changesFile = null, trajectoryPrefix = null;
+		int window = 10, threads = Runtime.getRuntime().availableProcessors();
+		List<int[]> ranges = new ArrayList<int[]>();
+		for(int i=1; i<args.length; i++) {
+			String t = args[i];
+			if(t.startsWith("changes=")) changesFile = t.substring("changes=".length());
+			else if(t.startsWith("window=")) window = Integer.parseInt(t.substring("window=".length()));
+			else if(t.startsWith("trajectory=")) trajectoryPrefix = t.substring("trajectory=".length());
+			else if(t.startsWith("threads=")) threads = Integer.parseInt(t.substring("threads=".length()));
+			else {
+				String[] fromTo = t.split("-");
+				ranges.add(new int[]{ Integer.parseInt(fromTo[0]), Integer.parseInt(fromTo[1]) });
+			}
+		}
+		if(changesFile != null) {
+			for(int g : readChanges(changesFile)) {
+				ranges.add(new int[]{ Math.max(0, g - window), g });
+			}
+		}
+
+		try(RunJournalReader journal = new RunJournalReader(Paths.get(args[0]))) {
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for(int[] r : ranges) {
+				results.add(pool.submit(new Range(journal, r[0], r[1], trajectoryPrefix)));
+			}
+			pool.shutdown();
+			// Print results in the order the ranges were given
+			for(Future<String> f : results) {
+				try {
+					System.out.print(f.get());
+				} catch(ExecutionException e) {
+					System.err.println("# failed: " + e.getCause().getLocalizedMessage());
+				}
+			}
+		}
+	}
+
+}
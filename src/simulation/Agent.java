@@ -13,22 +13,15 @@ import java.util.Random;
 
 public class Agent implements Cloneable {
 
-	// Lighting contrast: contrast in [-1,1]
-	private double contrast = 0.0;
-	// Lighting brightness: brightness in [0,1].
-	private double brightness = 0.5;
+	// Heritable traits, shared with every other agent of the same genotype in this world:
+	// Lighting contrast in [-1,1] and brightness in [0,1]
 	// Actual probability of lighting when on food is 0.5*brightness*(1+contrast); when off food is 0.5*brightness*(1-contrast)
 	// Hence 0 contrast = equally likely to be lit up when on or off food; brightness is overall probability of being lit in a random environment
-
-	// Motion directedness: directed in [0,1]
-	private double directedness = 0.0;
-	private boolean reversed = false; // Whether the tendency is to move *away* from the light; this is equivalent to d in [-1,1] as stated in the paper
-	// Motion rate: rate in [0,1]
-	private double motility = 1.0;
+	// Motion rate (motility) in [0,1] and directedness in [0,1], which is reversed if the tendency is to move *away* from the light;
+	// this is equivalent to d in [-1,1] as stated in the paper
 	// Probability of moving in any direction is rate; probability that it is towards food is directed
-
 	// Efficiency at consuming food, derived from some cost associated with signalling and responses
-	private double efficiency = 1.0;
+	private Genotype genotype;
 
 	// World in which this agent is embedded
 	private World world = null;
@@ -45,6 +38,9 @@ public class Agent implements Cloneable {
 	// A species id, useful in those cases where we can trace to a common ancestor
 	private int speciesId;
 
+	// The eight non-zero steps, for choosing a random one with a single draw (see World.DrawOrder)
+	private static final int[] STEP_X = { -1, -1, -1, 0, 0, 1, 1, 1 }, STEP_Y = { -1, 0, 1, -1, 1, -1, 0, 1 };
+
 
 	//  METHODS FOR OBTAINING CURRENT STATE
 	public int getX() {
@@ -68,7 +64,7 @@ public class Agent implements Cloneable {
 	}
 
 	public double getFitness() {
-		return food * efficiency;
+		return food * genotype.efficiency;
 	}
 
 	public boolean isLightOn() {
@@ -76,7 +72,7 @@ public class Agent implements Cloneable {
 	}
 
 	public double getEfficiency() {
-		return efficiency;
+		return genotype.efficiency;
 	}
 
 	public int getSpeciesId() {
@@ -97,46 +93,154 @@ public class Agent implements Cloneable {
 	 *
 	 */
 	public void respond(int dx, int dy, Random rng) {
+		act(dx, dy, rng);
+		// The world's light index cannot have seen this coming
+		world.agentsChanged();
+	}
+
+	/**
+	 * Respond as respond() does, for updates made by the world itself, which keeps its light index up to date
+	 *
+	 * @param dx x displacement of nearest visible light
+	 * @param dy y displacement of nearest visible light
+	 * @param rng noise source
+	 */
+	void act(int dx, int dy, Random rng) {
 		// Decide whether we will move: this is set up so that we will *always* move with probability 'rate'
-		if(rng.nextDouble() < motility) {
-
-			// Generate a movement direction
-			if(!(dx == 0 && dy == 0) && (directedness == 1.0 || rng.nextDouble() < directedness)) {
-				// Systematic towards a light
-				if(reversed) {
-					if(dx < 0) dx = 1;
-					else if (dx > 0) dx = -1;
-					if(dy < 0) dy = 1;
-					else if (dy > 0) dy = -1;
-				}
-				else {
-					if(dx < 0) dx = -1;
-					else if (dx > 0) dx = 1;
-					if(dy < 0) dy = -1;
-					else if (dy > 0) dy = 1;
-				}
+		if(rng.nextDouble() < genotype.motility) move(dx, dy, rng);
+		settle(rng);
+	}
+
+	/**
+	 * Take one step, towards (or away from) a light or in a random direction, as respond() does when the agent moves
+	 *
+	 * @param dx x displacement of nearest visible light, or 0 if there is none
+	 * @param dy y displacement of nearest visible light, or 0 if there is none
+	 * @param rng noise source
+	 */
+	void move(int dx, int dy, Random rng) {
+		// Generate a movement direction
+		double directedness = genotype.directedness;
+		if(!(dx == 0 && dy == 0) && (directedness == 1.0 || rng.nextDouble() < directedness)) {
+			// Systematic towards a light
+			if(genotype.reversed) {
+				if(dx < 0) dx = 1;
+				else if (dx > 0) dx = -1;
+				if(dy < 0) dy = 1;
+				else if (dy > 0) dy = -1;
 			}
 			else {
-				// Random non-zero displacement
-				dx = dy = 0;
-				while (dx == 0 && dy == 0) {
-					dx = rng.nextInt(3)-1; dy = rng.nextInt(3)-1;
-				}
+				if(dx < 0) dx = -1;
+				else if (dx > 0) dx = 1;
+				if(dy < 0) dy = -1;
+				else if (dy > 0) dy = 1;
+			}
+		}
+		else if(world.tableDraws) {
+			int k = rng.nextInt(8);
+			dx = STEP_X[k]; dy = STEP_Y[k];
+		}
+		else {
+			// Random non-zero displacement
+			dx = dy = 0;
+			while (dx == 0 && dy == 0) {
+				dx = rng.nextInt(3)-1; dy = rng.nextInt(3)-1;
 			}
-
-			posx = (posx + dx + world.getSizeX()) % world.getSizeX();
-			posy = (posy + dy + world.getSizeY()) % world.getSizeY();
 		}
 
-		if(isOnFood()) food++;
+		posx = (posx + dx + world.getSizeX()) % world.getSizeX();
+		posy = (posy + dy + world.getSizeY()) % world.getSizeY();
+	}
+
+	/**
+	 * Finish an update, as respond() does whether or not the agent moved: consume any food here and set the light
+	 *
+	 * @param rng noise source
+	 */
+	void settle(Random rng) {
+		boolean onFood = isOnFood();
+		if(onFood) food++;
 
 		// Generate a lighting condition
-		if(isOnFood()) {
-			light = rng.nextDouble() < 0.5 * brightness * (1.0 + contrast);
-		} else {
-			light = rng.nextDouble() < 0.5 * brightness * (1.0 - contrast);
+		light = rng.nextDouble() < (onFood ? genotype.lightOnFood : genotype.lightOffFood);
+	}
+
+	/**
+	 * Probability that an update leaves the agent's light on, given whether or not it is on food
+	 *
+	 * @param onFood whether the agent is on food after the update
+	 * @return probability of the light being on
+	 */
+	double lightProbability(boolean onFood) {
+		return onFood ? genotype.lightOnFood : genotype.lightOffFood;
+	}
+
+	/**
+	 * Make a number of updates in a row as respond() does when there is no light to follow: a lazy random walk,
+	 * eating whenever on food.  The updates spent on one site between moves are counted in one go, and only the light
+	 * state after the last update is generated.
+	 *
+	 * @param updates number of updates
+	 * @param rng noise source
+	 */
+	void walk(int updates, Random rng) {
+		int sx = world.getSizeX(), sy = world.getSizeY();
+		double motility = genotype.motility;
+		double logStay = Math.log(1.0 - motility);
+		while(updates > 0) {
+			// Number of updates before the next move: geometric, drawn directly when moves are rare
+			int stay;
+			if(motility <= 0.0) stay = updates;
+			else if(motility < 0.5) stay = (int)Math.min(updates, Math.floor(Math.log(1.0 - rng.nextDouble()) / logStay));
+			else for(stay = 0; stay < updates && !(rng.nextDouble() < motility); stay++);
+
+			if(stay >= updates) {
+				if(isOnFood()) food += updates;
+				break;
+			}
+			if(isOnFood()) food += stay;
+
+			// Random non-zero displacement
+			int dx = 0, dy = 0;
+			if(world.tableDraws) {
+				int k = rng.nextInt(8);
+				dx = STEP_X[k]; dy = STEP_Y[k];
+			}
+			while (dx == 0 && dy == 0) {
+				dx = rng.nextInt(3)-1; dy = rng.nextInt(3)-1;
+			}
+			posx = (posx + dx + sx) % sx;
+			posy = (posy + dy + sy) % sy;
+			if(isOnFood()) food++;
+			updates -= stay + 1;
 		}
 
+		// Generate a lighting condition
+		light = rng.nextDouble() < (isOnFood() ? genotype.lightOnFood : genotype.lightOffFood);
+	}
+
+	/**
+	 * Move the agent directly, e.g., when its updates have been carried out elsewhere (see ReplicaBatch)
+	 *
+	 * @param x new x position
+	 * @param y new y position
+	 */
+	void setPosition(int x, int y) {
+		posx = x;
+		posy = y;
+	}
+
+	Genotype getGenotype() {
+		return genotype;
+	}
+
+	/**
+	 * Set the light state directly, e.g., when restoring a saved world
+	 *
+	 * @param on whether the light is showing
+	 */
+	void setLightOn(boolean on) {
+		light = on;
 	}
 
 	/**
@@ -146,20 +250,12 @@ public class Agent implements Cloneable {
 	 */
 	public void setSpeciesId(int sid) {
 		this.speciesId = sid;
+		// Agents only see lights of their own species, which the light index may have taken into account
+		world.agentsChanged();
 	}
 
 	//  AGENT BEHAVIOURS
 
-	/**
-	 * How much benefit is obtained per unit of food; we assume that any deviation from purely random behaviour incurs a cost
-	 */
-	private void calculateEfficiency() {
-		efficiency = Math.exp( - world.getContrastWeight() * Math.abs(contrast) - world.getBrightnessWeight() * brightness
-				- world.getMotilityWeight() * motility - world.getDirectednessWeight() * directedness );
-		assert !Double.isInfinite(efficiency);
-		assert !Double.isNaN(efficiency);
-	}
-
 
 	/**
 	 * Randomly change one of the genotype values to a number distributed uniformly in [-1,1)
@@ -168,6 +264,8 @@ public class Agent implements Cloneable {
 	 */
 	public void mutate(Random rng) {
 		// This goes against the efficiency grain
+		double contrast = genotype.contrast, brightness = genotype.brightness, motility = genotype.motility, directedness = genotype.directedness;
+		boolean reversed = genotype.reversed;
 		int r = rng.nextInt((world.contrastIsMutable() ? 1 : 0) + (world.brightnessIsMutable() ? 1 : 0) + (world.motilityIsMutable() ? 1 : 0) + (world.directednessIsMutable() ? 1 : 0));
 		if(r == 0 && world.contrastIsMutable()) {
 			contrast =  2.0*rng.nextDouble() - 1.0;
@@ -180,7 +278,7 @@ public class Agent implements Cloneable {
 			directedness = rng.nextDouble();
 			reversed = rng.nextBoolean();
 		}
-		calculateEfficiency();
+		genotype = world.genotype(contrast, brightness, motility, directedness, reversed);
 	}
 
 
@@ -191,7 +289,7 @@ public class Agent implements Cloneable {
 	 * @return a number in [-1,1]; +ve (-ve) is (dis)honest; modulus is strength
 	 */
 	public double getContrast() {
-		return contrast;
+		return genotype.contrast;
 	}
 
 	/**
@@ -200,7 +298,7 @@ public class Agent implements Cloneable {
 	 * @return a number in [0,1]; strength
 	 */
 	public double getBrightness() {
-		return brightness;
+		return genotype.brightness;
 	}
 
 	/**
@@ -209,7 +307,7 @@ public class Agent implements Cloneable {
 	 * @return a number in [0,1]; strength
 	 */
 	public double getMotility() {
-		return motility;
+		return genotype.motility;
 	}
 
 	/**
@@ -218,7 +316,7 @@ public class Agent implements Cloneable {
 	 * @return a number in [-1,1]; strength (negative means away from the nearest light)
 	 */
 	public double getDirectedness() {
-		return reversed ? -directedness : directedness;
+		return genotype.reversed ? -genotype.directedness : genotype.directedness;
 	}
 
 
@@ -237,14 +335,7 @@ public class Agent implements Cloneable {
 	 */
 	public Agent(World w, int x, int y, double contrast, double brightness, double motility, double directedness) {
 		world = w; posx = x; posy = y;
-
-		this.contrast = contrast;
-		this.brightness = brightness;
-		this.motility = motility;
-		this.directedness = Math.abs(directedness);
-		this.reversed = directedness < 0;
-
-		calculateEfficiency();
+		genotype = w.genotype(contrast, brightness, motility, Math.abs(directedness), directedness < 0);
 	}
 
 
@@ -258,12 +349,7 @@ public class Agent implements Cloneable {
 	 */
 	public Agent(World w, int x, int y, Agent parent) {
 		world = w; posx = x; posy = y;
-		this.contrast = parent.contrast;
-		this.brightness = parent.brightness;
-		this.directedness = parent.directedness;
-		this.reversed = parent.reversed;
-		this.motility = parent.motility;
-		this.efficiency = parent.efficiency;
+		this.genotype = parent.genotype;
 		this.light = parent.light;
 		this.speciesId = parent.speciesId;
 	}
@@ -0,0 +1,109 @@
+package simulation;
+
+import java.util.Random;
+
+/**
+ * A random number generator that produces exactly the same sequence as java.util.Random, but whose internal state
+ * can be read and restored.  This allows a run to be reproduced from any point at which the state was saved.
+ *
+ * Unlike java.util.Random, instances must not be shared between threads.  nextGaussian() makes Gaussians in pairs, as
+ * java.util.Random does, and keeps the second of a pair for the next call; that Gaussian is part of the state too, and
+ * is read and restored alongside the rest.
+ *
+ * @author richard
+ *
+ */
+
+@SuppressWarnings("serial")
+public class CheckpointableRandom extends Random {
+
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48) - 1;
+
+	// Not initialised here: the superclass constructor sets them through setSeed()
+	private long state;
+	// The second of the last pair of Gaussians, if not yet used
+	private boolean haveNextGaussian;
+	private double nextGaussian;
+
+	public CheckpointableRandom() {
+		super();
+	}
+
+	public CheckpointableRandom(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public synchronized void setSeed(long seed) {
+		state = (seed ^ MULTIPLIER) & MASK;
+		haveNextGaussian = false;
+	}
+
+	@Override
+	protected int next(int bits) {
+		state = (state * MULTIPLIER + ADDEND) & MASK;
+		return (int)(state >>> (48 - bits));
+	}
+
+	@Override
+	public double nextGaussian() {
+		// The polar method, exactly as java.util.Random has it
+		if(haveNextGaussian) {
+			haveNextGaussian = false;
+			return nextGaussian;
+		}
+		double v1, v2, s;
+		do {
+			v1 = 2 * nextDouble() - 1;
+			v2 = 2 * nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		} while(s >= 1 || s == 0);
+		double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+		nextGaussian = v2 * multiplier;
+		haveNextGaussian = true;
+		return v1 * multiplier;
+	}
+
+	/**
+	 * Read the internal state, which with getCachedGaussian() can be passed to setState() to continue the sequence
+	 * from this point
+	 *
+	 * @return 48-bit generator state
+	 */
+	public long getState() {
+		return state;
+	}
+
+	/**
+	 * Read the Gaussian kept for the next call to nextGaussian(), the rest of the state
+	 *
+	 * @return the Gaussian, or NaN if there is none
+	 */
+	public double getCachedGaussian() {
+		return haveNextGaussian ? nextGaussian : Double.NaN;
+	}
+
+	/**
+	 * Restore an internal state previously obtained from getState(), with no Gaussian kept
+	 *
+	 * @param s 48-bit generator state
+	 */
+	public void setState(long s) {
+		setState(s, Double.NaN);
+	}
+
+	/**
+	 * Restore an internal state previously obtained from getState() and getCachedGaussian()
+	 *
+	 * @param s 48-bit generator state
+	 * @param cachedGaussian Gaussian kept for the next call to nextGaussian(), or NaN if none
+	 */
+	public void setState(long s, double cachedGaussian) {
+		state = s & MASK;
+		haveNextGaussian = !Double.isNaN(cachedGaussian);
+		nextGaussian = cachedGaussian;
+	}
+
+}
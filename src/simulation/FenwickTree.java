@@ -0,0 +1,72 @@
+package simulation;
+
+/**
+ * A binary indexed (Fenwick) tree of non-negative weights, which supports changing a weight and choosing an index
+ * with probability proportional to its weight, both in a time logarithmic in the number of weights.
+ *
+ * @author richard
+ *
+ */
+
+class FenwickTree {
+
+	// tree[i] holds the sum of the weights with indices i-(i&-i) .. i-1
+	private final double[] tree;
+	private final double[] weight;
+	private final int top;
+
+	FenwickTree(int n) {
+		tree = new double[n + 1];
+		weight = new double[n];
+		top = n == 0 ? 0 : Integer.highestOneBit(n);
+	}
+
+	int size() {
+		return weight.length;
+	}
+
+	double get(int i) {
+		return weight[i];
+	}
+
+	void set(int i, double w) {
+		double delta = w - weight[i];
+		weight[i] = w;
+		for(int k=i+1; k<tree.length; k+=k&-k) {
+			tree[k] += delta;
+		}
+	}
+
+	/**
+	 * Sum of all the weights
+	 */
+	double total() {
+		double s = 0.0;
+		for(int k=weight.length; k>0; k-=k&-k) {
+			s += tree[k];
+		}
+		return s;
+	}
+
+	/**
+	 * Find the index at which the running total of the weights first exceeds u
+	 *
+	 * @param u number in [0,total())
+	 * @return index with weight > 0, chosen with probability proportional to its weight if u is uniform
+	 */
+	int find(double u) {
+		int pos = 0;
+		for(int step=top; step>0; step>>=1) {
+			if(pos + step < tree.length && tree[pos + step] <= u) {
+				pos += step;
+				u -= tree[pos];
+			}
+		}
+		// Guard against rounding error taking us past the end, or leaving us on an index with no weight
+		if(pos >= weight.length) pos = weight.length - 1;
+		while(pos < weight.length - 1 && weight[pos] == 0.0) pos++;
+		while(pos > 0 && weight[pos] == 0.0) pos--;
+		return pos;
+	}
+
+}
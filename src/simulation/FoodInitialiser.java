@@ -1,5 +1,7 @@
 package simulation;
 
+import java.util.List;
+
 /**
  * Class to provide an initial amount of food to an agent when it is created
  * 
@@ -15,4 +17,18 @@ public class FoodInitialiser {
 	public void assignFood(Agent agent) {
 		agent.setFoodConsumed(0);
 	}
+
+	/**
+	 * Assign food to a range of agents.  World calls this once for each new generation, with the whole generation,
+	 * after all its agents have been created.  By default this calls assignFood() for each agent in turn; subclasses
+	 * can override it to share work between agents, or if the food assigned depends on the make-up of the population
+	 * @param agents list of agents
+	 * @param from index of the first agent to assign food to
+	 * @param to index after the last agent to assign food to
+	 */
+	public void assignFood(List<Agent> agents, int from, int to) {
+		for(int i=from; i<to; i++) {
+			assignFood(agents.get(i));
+		}
+	}
 }
@@ -0,0 +1,261 @@
+package simulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Distributions of the food an agent consumes over one generation, measured by running real sweeps, as a function
+ * of its genotype and of the number of agents in its species.  Agents only see the lights of their own species and
+ * food is never used up, so these are the only things that matter.
+ *
+ * Each trait is rounded to one of a number of evenly spaced levels, and the abundance to a power of two.  The
+ * distribution for each such cell is measured the first time it is needed and appended to a file, so that later
+ * runs with the same world parameters can reuse it.  A cell is measured by filling a world with as many species of
+ * the given abundance and genotype as will fit; these do not interact, so every agent provides a sample.
+ *
+ * File layout: int magic, int version, int sizex, int sizey, int food sites, int agents, int sweeps, int levels,
+ * int samples, int quantiles, then cells of the form long key, quantiles floats.
+ *
+ * @author richard
+ *
+ */
+
+public class FoodIntakeTable implements Closeable {
+
+	public static final int MAGIC = 0x46465049; // "FFPI"
+	public static final int VERSION = 1;
+
+	// Conventional extension for table files
+	public static final String EXTENSION = ".ffi";
+
+	// Resolution used for new tables
+	public static final int DEFAULT_LEVELS = 5;
+	public static final int DEFAULT_SAMPLES = 4000;
+	public static final int QUANTILES = 65;
+
+	private final int sizex, sizey, foodSites, agents, sweeps, levels, samples;
+
+	// Quantile functions of the cells measured so far, evenly spaced in probability from 0 to 1
+	private final Map<Long, float[]> cells = new HashMap<Long, float[]>();
+
+	// Cells measured by this instance are appended to the file; it is only opened for writing once there is one
+	private final Path file;
+	private DataOutputStream out = null;
+
+	private int measured = 0;
+
+	/**
+	 * Open a table file, creating it if it does not exist
+	 *
+	 * @param file table file
+	 * @param sizex width of the world
+	 * @param sizey height of the world
+	 * @param foodSites number of sites with food
+	 * @param agents number of agents in the world
+	 * @param sweeps sweeps per generation
+	 * @throws IOException if the file cannot be read or written, or was measured with different parameters
+	 */
+	public FoodIntakeTable(Path file, int sizex, int sizey, int foodSites, int agents, int sweeps) throws IOException {
+		this.file = file;
+		this.sizex = sizex;
+		this.sizey = sizey;
+		this.foodSites = foodSites;
+		this.agents = agents;
+		this.sweeps = sweeps;
+		if(Files.exists(file) && Files.size(file) > 0) {
+			int[] header = load(file);
+			if(header[0] != sizex || header[1] != sizey || header[2] != foodSites || header[3] != agents || header[4] != sweeps) {
+				throw new IOException(file + " was measured with different world parameters");
+			}
+			levels = header[5];
+			samples = header[6];
+		} else {
+			levels = DEFAULT_LEVELS;
+			samples = DEFAULT_SAMPLES;
+			try(DataOutputStream header = new DataOutputStream(Files.newOutputStream(file))) {
+				header.writeInt(MAGIC);
+				header.writeInt(VERSION);
+				header.writeInt(sizex);
+				header.writeInt(sizey);
+				header.writeInt(foodSites);
+				header.writeInt(agents);
+				header.writeInt(sweeps);
+				header.writeInt(levels);
+				header.writeInt(samples);
+				header.writeInt(QUANTILES);
+			}
+		}
+	}
+
+	// Read the cells already in a file, returning the parameters from its header
+	private int[] load(Path file) throws IOException {
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if(in.readInt() != MAGIC) throw new IOException(file + " is not a food intake table");
+			int version = in.readInt();
+			if(version > VERSION) throw new IOException("unsupported table version " + version);
+			int[] header = new int[7];
+			for(int k=0; k<header.length; k++) header[k] = in.readInt();
+			if(in.readInt() != QUANTILES) throw new IOException(file + " has a different number of quantiles");
+			try {
+				while(true) {
+					long key = in.readLong();
+					float[] q = new float[QUANTILES];
+					for(int k=0; k<QUANTILES; k++) q[k] = in.readFloat();
+					cells.put(key, q);
+				}
+			} catch(EOFException e) { /* End of table, possibly with an incomplete cell */ }
+			return header;
+		}
+	}
+
+	public int getLevels() {
+		return levels;
+	}
+
+	/**
+	 * Number of cells in the table
+	 *
+	 * @return cells measured so far, including those read from the file
+	 */
+	public synchronized int getCellCount() {
+		return cells.size();
+	}
+
+	/**
+	 * Number of cells that have had to be measured since the table was opened
+	 *
+	 * @return cells measured by this instance
+	 */
+	public synchronized int getMeasuredCount() {
+		return measured;
+	}
+
+	// Round a trait in [lo,hi] to its level
+	private int level(double v, double lo, double hi) {
+		int l = (int)Math.round((v - lo) / (hi - lo) * (levels - 1));
+		return l < 0 ? 0 : l >= levels ? levels - 1 : l;
+	}
+
+	// Value of a trait in [lo,hi] at a given level
+	private double value(int l, double lo, double hi) {
+		return lo + (hi - lo) * l / (levels - 1);
+	}
+
+	/**
+	 * Find the cell that an agent with a given genotype and abundance falls into.  Cells for which some traits can
+	 * have no effect are merged: a sedentary agent never responds to lights, lights are never seen if nobody shows
+	 * them or there is nobody else of the same species to show them, and they are ignored with zero directedness.
+	 *
+	 * @return key identifying the cell
+	 */
+	public long key(double contrast, double brightness, double motility, double directedness, int abundance) {
+		int c = level(contrast, -1.0, 1.0), b = level(brightness, 0.0, 1.0);
+		int m = level(motility, 0.0, 1.0), d = level(directedness, -1.0, 1.0);
+		int a = 31 - Integer.numberOfLeadingZeros(Math.max(1, Math.min(abundance, agents)));
+		if(m == 0) {
+			c = b = d = a = 0;
+		} else if(b == 0 || a == 0 || value(d, -1.0, 1.0) == 0.0) {
+			// Measured as a world without lights
+			c = b = d = 0;
+		}
+		return ((((long)c * levels + b) * levels + m) * levels + d) * 32 + a;
+	}
+
+	/**
+	 * Get the quantile function for a cell, measuring it first if it is not yet in the table
+	 *
+	 * @param key cell, as returned by key()
+	 * @return food consumed at probabilities 0, 1/(QUANTILES-1), ..., 1; must not be modified
+	 * @throws IOException if a newly measured cell cannot be written to the file
+	 */
+	public synchronized float[] lookup(long key) throws IOException {
+		float[] q = cells.get(key);
+		if(q == null) {
+			q = measure(key);
+			cells.put(key, q);
+			measured++;
+			if(out == null) out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND)));
+			out.writeLong(key);
+			for(float f : q) out.writeFloat(f);
+			out.flush();
+		}
+		return q;
+	}
+
+	// Run sweeps for a cell and summarise the food consumed by its quantiles
+	private float[] measure(long key) {
+		int a = (int)(key % 32);
+		long g = key / 32;
+		int d = (int)(g % levels); g /= levels;
+		int m = (int)(g % levels); g /= levels;
+		int b = (int)(g % levels); g /= levels;
+		int c = (int)g;
+
+		// Use the middle of the range of abundances, clamped to the population
+		int abundance = Math.min(agents, a == 0 ? 1 : (3 << a) / 2 - 1);
+		int groups = agents / abundance;
+
+		// Each cell gets its own generator, so that the table does not depend on the order cells are measured in
+		World w = new World();
+		w.setWorldRNG(new Random(key * 0x9E3779B97F4A7C15L));
+		w.setEngine(World.Engine.HYBRID);
+		w.setSize(sizex, sizey);
+		w.assignFood(foodSites);
+
+		int[] food = new int[samples + agents];
+		int n = 0;
+		while(n < samples) {
+			w.assignAgents(agents, value(b, 0.0, 1.0), value(c, -1.0, 1.0), value(m, 0.0, 1.0), value(d, -1.0, 1.0));
+			List<Agent> ags = w.getAgents();
+			for(int i=0; i<ags.size(); i++) {
+				ags.get(i).setFoodConsumed(0);
+				ags.get(i).setSpeciesId(Math.min(i / abundance, groups));
+			}
+			w.shuffleFood();
+			w.sweeps(sweeps);
+			// Agents left over after filling the groups form a smaller species, so are not counted
+			for(int i=0; i<groups*abundance; i++) {
+				food[n++] = ags.get(i).getFoodConsumed();
+			}
+		}
+
+		Arrays.sort(food, 0, n);
+		float[] q = new float[QUANTILES];
+		for(int k=0; k<QUANTILES; k++) {
+			q[k] = food[(int)((long)k * (n-1) / (QUANTILES-1))];
+		}
+		return q;
+	}
+
+	/**
+	 * Draw the food consumed by an agent from a quantile function
+	 *
+	 * @param q quantile function, as returned by lookup()
+	 * @param rng noise source
+	 * @return food consumed
+	 */
+	public static int sample(float[] q, Random rng) {
+		double u = rng.nextDouble() * (q.length - 1);
+		int k = (int)u;
+		return (int)Math.round(q[k] + (u - k) * (q[k+1] - q[k]));
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(out != null) out.close();
+	}
+
+}
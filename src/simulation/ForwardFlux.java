@@ -0,0 +1,288 @@
+package simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Estimates the rate of a rare transition by forward flux sampling (Allen, Warren and ten Wolde, 2005).  Progress
+ * towards the transition is measured by an order parameter, a function of the world such as the fraction of agents
+ * with a target genotype, and a series of interfaces l0 < l1 < ... < ln is placed along it.  The world is in the
+ * starting basin while the order parameter is below l0, and the transition is complete once it reaches ln.
+ *
+ * First, trajectories are run from the initial world, and every time one goes up through l0, having last been in the
+ * starting basin, the world is copied and kept; the rate at which this happens, per generation, is the flux out of
+ * the basin.  Then, interface by interface, trials are started from copies of worlds kept at the last interface: those
+ * that reach the next interface are copied and kept in turn, and those that fall back into the basin are abandoned.
+ * Promising trajectories are thus branched and the rest pruned, and the rate of the transition is the flux times the
+ * product of the fractions of trials that succeed at each interface.
+ *
+ * Trials are run on a pool of threads, each with a world of its own, made once by a factory and copied into with
+ * World.copyFrom() for each trial.  Every trajectory and trial has a seed of its own, drawn up front from the seed
+ * given, and the world's generator is reseeded with it, so the results do not depend on the number of threads.  For
+ * this the worlds made by the factory must draw all their random numbers from their own generator, including any
+ * food initialiser they have.
+ *
+ * @author richard
+ *
+ */
+
+public class ForwardFlux {
+
+	/**
+	 * Outcome of a run: the flux out of the starting basin, the fraction of trials that succeeded at each interface,
+	 * and the rate of the transition that follows from them
+	 */
+	public static class Result {
+		// Crossings of the first interface, and generations run to find them
+		public final int crossings;
+		public final long generations;
+		// Flux out of the starting basin, per generation
+		public final double flux;
+		// Per interface after the first: trials started towards it, and how many reached it
+		public final int[] trials, successes;
+		// Trials abandoned for going on for too long, counted among the failures
+		public final int truncated;
+		// Rate of the transition per generation, and its standard error
+		public final double rate, rateError;
+
+		Result(int crossings, long generations, int[] trials, int[] successes, int truncated) {
+			this.crossings = crossings;
+			this.generations = generations;
+			this.trials = trials;
+			this.successes = successes;
+			this.truncated = truncated;
+			flux = generations == 0 ? 0.0 : (double)crossings / generations;
+			// The crossings are taken to be a Poisson process, and the successes at each interface binomial: with
+			// these independent, the relative variance of the product is about the sum of the relative variances
+			double r = flux, var = crossings == 0 ? 0.0 : 1.0 / crossings;
+			for(int i=0; i<trials.length; i++) {
+				double p = trials[i] == 0 ? 0.0 : (double)successes[i] / trials[i];
+				r *= p;
+				if(p > 0.0) var += (1.0 - p) / (p * trials[i]);
+			}
+			rate = r;
+			rateError = r * Math.sqrt(var);
+		}
+
+		/**
+		 * Fraction of trials that reached an interface
+		 *
+		 * @param i interface, from 1 to n
+		 * @return probability of reaching interface i from interface i-1
+		 */
+		public double getProbability(int i) {
+			return trials[i-1] == 0 ? 0.0 : (double)successes[i-1] / trials[i-1];
+		}
+	}
+
+	private final ThreadLocal<World> worlds;
+	private final ToDoubleFunction<World> order;
+	private final double[] interfaces;
+	private final int sweeps;
+	private final double mutate;
+
+	// Number of generations after which a trial is given up, or a trajectory stops looking for crossings
+	private int maxGenerations = 100000;
+
+	/**
+	 * Set up a sampler
+	 *
+	 * @param factory makes a world configured as the simulation should be, with a generator of its own; called once
+	 * for each thread
+	 * @param order order parameter, which should increase towards the transition
+	 * @param interfaces values of the order parameter at the interfaces, increasing: the first bounds the starting
+	 * basin, and the last marks the transition
+	 * @param sweeps sweeps per generation
+	 * @param mutate mutation probability
+	 */
+	public ForwardFlux(Supplier<World> factory, ToDoubleFunction<World> order, double[] interfaces, int sweeps, double mutate) {
+		if(interfaces.length < 2) throw new IllegalArgumentException("at least two interfaces are needed");
+		for(int i=1; i<interfaces.length; i++) {
+			if(interfaces[i] <= interfaces[i-1]) throw new IllegalArgumentException("interfaces must increase");
+		}
+		this.worlds = ThreadLocal.withInitial(factory);
+		this.order = order;
+		this.interfaces = interfaces.clone();
+		this.sweeps = sweeps;
+		this.mutate = mutate;
+	}
+
+	/**
+	 * Give up trials that have gone on for a number of generations without an outcome, and stop each trajectory that
+	 * collects crossings after that many generations.  Trials given up count as failures, so this should be large
+	 * enough that few are.
+	 *
+	 * @param g number of generations
+	 */
+	public void setMaxGenerations(int g) {
+		maxGenerations = g;
+	}
+
+	public int getMaxGenerations() {
+		return maxGenerations;
+	}
+
+	// Copy of a world, kept at an interface; made in a bare world, since copyFrom() works out efficiencies afresh
+	private static World keep(World w) {
+		World k = new World();
+		k.copyFrom(w);
+		return k;
+	}
+
+	// A trajectory from the initial world, collecting crossings of the first interface until it has enough of them or
+	// has run for the maximum number of generations; either way, the flux it measures is fair
+	private class Walker implements Callable<Walker> {
+		private final World initial;
+		private final long seed;
+		private final int wanted;
+		final List<World> kept = new ArrayList<World>();
+		long generations = 0;
+
+		Walker(World initial, long seed, int wanted) {
+			this.initial = initial;
+			this.seed = seed;
+			this.wanted = wanted;
+		}
+
+		@Override
+		public Walker call() {
+			World w = worlds.get();
+			w.copyFrom(initial);
+			w.getWorldRNG().setSeed(seed);
+			boolean inBasin = true;
+			while(kept.size() < wanted && generations < maxGenerations) {
+				w.evolve(sweeps, mutate);
+				generations++;
+				double l = order.applyAsDouble(w);
+				if(l < interfaces[0]) inBasin = true;
+				else if(inBasin) {
+					kept.add(keep(w));
+					inBasin = false;
+				}
+				if(l >= interfaces[interfaces.length-1]) {
+					// Time spent after the transition is not time in the basin: start again
+					w.copyFrom(initial);
+					inBasin = true;
+				}
+			}
+			return this;
+		}
+	}
+
+	// A trial from a world kept at one interface towards the next, keeping a copy of the world if it gets there
+	private class Trial implements Callable<Trial> {
+		private final World start;
+		private final long seed;
+		private final double target;
+		World reached = null;
+		boolean gaveUp = true;
+
+		Trial(World start, long seed, double target) {
+			this.start = start;
+			this.seed = seed;
+			this.target = target;
+		}
+
+		@Override
+		public Trial call() {
+			// A generation can go up through more than one interface at once
+			if(order.applyAsDouble(start) >= target) {
+				reached = start;
+				gaveUp = false;
+				return this;
+			}
+			World w = worlds.get();
+			w.copyFrom(start);
+			w.getWorldRNG().setSeed(seed);
+			for(int g=0; g<maxGenerations; g++) {
+				w.evolve(sweeps, mutate);
+				double l = order.applyAsDouble(w);
+				if(l >= target) reached = keep(w);
+				if(l >= target || l < interfaces[0]) {
+					gaveUp = false;
+					break;
+				}
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Run the sampler
+	 *
+	 * @param initial world in the starting basin to begin from; it is not changed
+	 * @param crossings number of crossings of the first interface to collect
+	 * @param walkers number of independent trajectories to collect them with
+	 * @param trials number of trials to start from each interface
+	 * @param seed seed from which every trajectory's and trial's seed is drawn
+	 * @param threads number of threads to run on
+	 * @return flux, probabilities and rate
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	public Result run(World initial, int crossings, int walkers, int trials, long seed, int threads) throws InterruptedException {
+		if(order.applyAsDouble(initial) >= interfaces[0]) throw new IllegalArgumentException("the initial world is not in the starting basin");
+		SplittableRandom seeds = new SplittableRandom(seed);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			// Flux out of the basin, with the crossings shared as evenly as can be between the walkers
+			List<Future<Walker>> started = new ArrayList<Future<Walker>>();
+			for(int k=0; k<walkers; k++) {
+				int wanted = crossings / walkers + (k < crossings % walkers ? 1 : 0);
+				started.add(pool.submit(new Walker(initial, seeds.nextLong(), wanted)));
+			}
+			List<World> kept = new ArrayList<World>();
+			long generations = 0;
+			for(Future<Walker> f : started) {
+				Walker w = get(f);
+				kept.addAll(w.kept);
+				generations += w.generations;
+			}
+			int found = kept.size();
+
+			// Each interface in turn, from the worlds kept at the one before
+			int n = interfaces.length - 1;
+			int[] tried = new int[n], reached = new int[n];
+			int truncated = 0;
+			for(int i=0; i<n && !kept.isEmpty(); i++) {
+				Random pick = new Random(seeds.nextLong());
+				List<Future<Trial>> fired = new ArrayList<Future<Trial>>();
+				for(int j=0; j<trials; j++) {
+					World start = kept.get(pick.nextInt(kept.size()));
+					fired.add(pool.submit(new Trial(start, seeds.nextLong(), interfaces[i+1])));
+				}
+				List<World> next = new ArrayList<World>();
+				for(Future<Trial> f : fired) {
+					Trial t = get(f);
+					if(t.reached != null) next.add(t.reached);
+					if(t.gaveUp) truncated++;
+				}
+				tried[i] = trials;
+				reached[i] = next.size();
+				kept = next;
+			}
+			return new Result(found, generations, tried, reached, truncated);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// Wait for a task, passing on anything it threw
+	private static <T> T get(Future<T> f) throws InterruptedException {
+		try {
+			return f.get();
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+package simulation;
+
+/**
+ * The heritable traits of an agent, with what follows from them: its efficiency and its probabilities of lighting up.
+ * Offspring copy their parents' traits, so a large population holds few distinct genotypes; World interns them (see
+ * World.genotype()) so that agents with the same traits share one, and these quantities are worked out once for all
+ * of them.  Genotypes are never changed once made.
+ *
+ * @author richard
+ *
+ */
+
+final class Genotype {
+
+	// Lighting contrast in [-1,1] and brightness in [0,1]
+	final double contrast, brightness;
+	// Motion rate in [0,1], and directedness in [0,1] towards or (if reversed) away from the light
+	final double motility, directedness;
+	final boolean reversed;
+	// Efficiency at consuming food, derived from some cost associated with signalling and responses
+	final double efficiency;
+
+	// Probability of lighting after an update that ends on and off food
+	final double lightOnFood, lightOffFood;
+
+	Genotype(double contrast, double brightness, double motility, double directedness, boolean reversed, double efficiency) {
+		this.contrast = contrast;
+		this.brightness = brightness;
+		this.motility = motility;
+		this.directedness = directedness;
+		this.reversed = reversed;
+		this.efficiency = efficiency;
+		lightOnFood = 0.5 * brightness * (1.0 + contrast);
+		lightOffFood = 0.5 * brightness * (1.0 - contrast);
+	}
+
+	/**
+	 * How much benefit is obtained per unit of food; we assume that any deviation from purely random behaviour incurs a cost
+	 *
+	 * @param w world whose costs apply
+	 */
+	static double efficiency(World w, double contrast, double brightness, double motility, double directedness) {
+		double efficiency = Math.exp( - w.getContrastWeight() * Math.abs(contrast) - w.getBrightnessWeight() * brightness
+				- w.getMotilityWeight() * motility - w.getDirectednessWeight() * directedness );
+		assert !Double.isInfinite(efficiency);
+		assert !Double.isNaN(efficiency);
+		return efficiency;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof Genotype)) return false;
+		Genotype g = (Genotype)o;
+		return Double.compare(contrast, g.contrast) == 0 && Double.compare(brightness, g.brightness) == 0
+				&& Double.compare(motility, g.motility) == 0 && Double.compare(directedness, g.directedness) == 0
+				&& reversed == g.reversed && Double.compare(efficiency, g.efficiency) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		long h = Double.doubleToLongBits(contrast);
+		h = h * 31 + Double.doubleToLongBits(brightness);
+		h = h * 31 + Double.doubleToLongBits(motility);
+		h = h * 31 + Double.doubleToLongBits(directedness);
+		h = h * 31 + (reversed ? 1 : 0);
+		h = h * 31 + Double.doubleToLongBits(efficiency);
+		return (int)(h ^ (h >>> 32));
+	}
+
+}
@@ -0,0 +1,119 @@
+package simulation;
+
+/**
+ * Keeps the lit agents in a grid of cells a few sites across, so that a search for the nearest light can look at the
+ * cells around an agent in rings of increasing size, stopping once no cell further out could hold anything nearer.
+ * Keeping the grid up to date is cheap, but every search costs at least one ring of cells, so this works best when
+ * lights are plentiful.  When agents can only see a limited distance, only the rings within sight are searched.
+ *
+ * @author richard
+ *
+ */
+
+class GridLightIndex extends LightIndex {
+
+	// Width of a cell in sites, roughly
+	private static final int CELL = 4;
+
+	private int cellsx, cellsy, minWidth;
+	private IndexSet[] cells;
+	// Cell each agent is held in, or -1 if its light was off when inserted
+	private int[] cellOf, pos;
+
+	@Override
+	void rebuild(World world) {
+		super.rebuild(world);
+		cellsx = Math.max(1, sizex / CELL);
+		cellsy = Math.max(1, sizey / CELL);
+		minWidth = Math.min(sizex / cellsx, sizey / cellsy);
+		cells = new IndexSet[cellsx * cellsy];
+		for(int c=0; c<cells.length; c++) cells[c] = new IndexSet();
+		int n = agents.size();
+		cellOf = new int[n];
+		pos = new int[n];
+		for(int k=0; k<n; k++) insert(k);
+	}
+
+	@Override
+	void remove(int k) {
+		if(cellOf[k] >= 0) cells[cellOf[k]].remove(k, pos);
+	}
+
+	@Override
+	void insert(int k) {
+		Agent a = agents.get(k);
+		if(a.isLightOn()) {
+			cellOf[k] = (a.getX() * cellsx / sizex) * cellsy + a.getY() * cellsy / sizey;
+			cells[cellOf[k]].add(k, pos);
+		} else {
+			cellOf[k] = -1;
+		}
+	}
+
+	// Best light found so far by find()
+	private int best, bestDistance;
+
+	// Consider the lights in one cell
+	private void search(int k, Agent a, int cx, int cy) {
+		IndexSet cell = cells[((cx + cellsx) % cellsx) * cellsy + (cy + cellsy) % cellsy];
+		for(int m=0; m<cell.size; m++) {
+			int j = cell.items[m];
+			if(j == k) continue;
+			Agent b = agents.get(j);
+			if(b.getSpeciesId() != a.getSpeciesId()) continue;
+			int ddx = imageX(b.getX() - a.getX()), ddy = imageY(b.getY() - a.getY());
+			if((ddx == 0 && ddy == 0) || !world.canSee(ddx, ddy)) continue;
+			int d = ddx * ddx + ddy * ddy;
+			if(best < 0 || d < bestDistance || (d == bestDistance && j < best)) {
+				best = j;
+				bestDistance = d;
+			}
+		}
+	}
+
+	@Override
+	void find(int k) {
+		Agent a = agents.get(k);
+		int cx = a.getX() * cellsx / sizex, cy = a.getY() * cellsy / sizey;
+		best = -1;
+		// Rings are searched while they do not wrap around onto cells already searched
+		int rings = (Math.min(cellsx, cellsy) - 1) / 2;
+		boolean done = false;
+		for(int r=0; r<=rings+1; r++) {
+			// Every site in ring r, or not in any of the rings searched, is at least this far away along one axis,
+			// and so, whatever the metric, is out of sight if this is beyond the visibility radius
+			int near = r == 0 ? 0 : (r - 1) * minWidth + 1;
+			done = (best >= 0 && bestDistance < near * near) || near > world.getVisibility();
+			if(done || r > rings) break;
+			if(r == 0) {
+				search(k, a, cx, cy);
+			} else {
+				for(int i=-r; i<=r; i++) {
+					search(k, a, cx + i, cy - r);
+					search(k, a, cx + i, cy + r);
+				}
+				for(int i=-r+1; i<r; i++) {
+					search(k, a, cx - r, cy + i);
+					search(k, a, cx + r, cy + i);
+				}
+			}
+		}
+		if(!done) {
+			// Nothing conclusive within the rings that fit, so look at everything
+			best = -1;
+			for(int x=0; x<cellsx; x++) {
+				for(int y=0; y<cellsy; y++) {
+					search(k, a, x, y);
+				}
+			}
+		}
+		if(best < 0) {
+			dx = dy = 0;
+		} else {
+			Agent b = agents.get(best);
+			dx = imageX(b.getX() - a.getX());
+			dy = imageY(b.getY() - a.getY());
+		}
+	}
+
+}
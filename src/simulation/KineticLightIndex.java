@@ -0,0 +1,147 @@
+package simulation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps every agent's nearest visible light, and repairs it only when something relevant changes.  When a lit agent
+ * is removed, the agents whose nearest light it was are marked as needing a search; when a lit agent is inserted,
+ * each of its species checks whether it is now nearer than their nearest light.  An agent that moves is also marked,
+ * and searches only the lit members of its species when next asked.
+ *
+ * Inserting a lit agent costs a pass over its species, so this works best when few lights are on, whatever the
+ * density of agents.
+ *
+ * @author richard
+ *
+ */
+
+class KineticLightIndex extends LightIndex {
+
+	// Per agent: species (as an index into the lists below), whether it was lit when inserted, nearest light (-1 for
+	// none) and its squared distance, whether these need recomputing, and who might have it as their nearest light
+	private int[] species, nearest, distance;
+	private boolean[] lit, stale;
+	private IndexSet[] watchers;
+
+	// Per species: all members, and those with their lights on
+	private final Map<Integer, Integer> speciesIndex = new HashMap<Integer, Integer>();
+	private final List<IndexSet> members = new ArrayList<IndexSet>(), lights = new ArrayList<IndexSet>();
+	private int[] memberPos, lightPos;
+
+	@Override
+	void rebuild(World world) {
+		super.rebuild(world);
+		int n = agents.size();
+		species = new int[n];
+		nearest = new int[n];
+		distance = new int[n];
+		lit = new boolean[n];
+		stale = new boolean[n];
+		watchers = new IndexSet[n];
+		memberPos = new int[n];
+		lightPos = new int[n];
+		speciesIndex.clear();
+		members.clear();
+		lights.clear();
+		for(int k=0; k<n; k++) {
+			watchers[k] = new IndexSet();
+			add(k);
+		}
+	}
+
+	// Put an agent into its species' sets, and mark it as needing a search
+	private void add(int k) {
+		Agent a = agents.get(k);
+		Integer s = speciesIndex.get(a.getSpeciesId());
+		if(s == null) {
+			speciesIndex.put(a.getSpeciesId(), s = members.size());
+			members.add(new IndexSet());
+			lights.add(new IndexSet());
+		}
+		species[k] = s;
+		members.get(s).add(k, memberPos);
+		lit[k] = a.isLightOn();
+		if(lit[k]) lights.get(s).add(k, lightPos);
+		stale[k] = true;
+	}
+
+	// Squared distance from agent i to agent j, or -1 if they are on the same site or j is out of i's sight
+	private int distance(int i, int j) {
+		Agent a = agents.get(i), b = agents.get(j);
+		int ddx = imageX(b.getX() - a.getX()), ddy = imageY(b.getY() - a.getY());
+		return (ddx == 0 && ddy == 0) || !world.canSee(ddx, ddy) ? -1 : ddx * ddx + ddy * ddy;
+	}
+
+	// Whether light j at squared distance d beats agent i's current nearest light
+	private boolean nearer(int i, int j, int d) {
+		return d >= 0 && (nearest[i] < 0 || d < distance[i] || (d == distance[i] && j < nearest[i]));
+	}
+
+	private void setNearest(int i, int j, int d) {
+		nearest[i] = j;
+		distance[i] = d;
+		// This may add i more than once, but watchers are emptied whenever their agent changes
+		if(j >= 0) watchers[j].append(i);
+	}
+
+	@Override
+	void find(int k) {
+		if(stale[k]) {
+			nearest[k] = -1;
+			IndexSet l = lights.get(species[k]);
+			for(int m=0; m<l.size; m++) {
+				int j = l.items[m];
+				if(j == k) continue;
+				int d = distance(k, j);
+				if(nearer(k, j, d)) {
+					nearest[k] = j;
+					distance[k] = d;
+				}
+			}
+			setNearest(k, nearest[k], distance[k]);
+			stale[k] = false;
+		}
+		if(nearest[k] < 0) {
+			dx = dy = 0;
+		} else {
+			Agent a = agents.get(k), b = agents.get(nearest[k]);
+			dx = imageX(b.getX() - a.getX());
+			dy = imageY(b.getY() - a.getY());
+		}
+	}
+
+	@Override
+	void remove(int k) {
+		int s = species[k];
+		members.get(s).remove(k, memberPos);
+		if(lit[k]) {
+			lights.get(s).remove(k, lightPos);
+			// Anybody for whom this was the nearest light will have to look again
+			IndexSet w = watchers[k];
+			for(int m=0; m<w.size; m++) {
+				int i = w.items[m];
+				if(nearest[i] == k) stale[i] = true;
+			}
+		}
+		watchers[k].size = 0;
+	}
+
+	@Override
+	void insert(int k) {
+		add(k);
+		if(lit[k]) {
+			// See if this is now the nearest light for any of its species
+			IndexSet l = members.get(species[k]);
+			for(int m=0; m<l.size; m++) {
+				int i = l.items[m];
+				if(i == k || stale[i]) continue;
+				int d = distance(i, k);
+				if(nearer(i, k, d)) setNearest(i, k, d);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+package simulation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * For a frozen set of lights, finds for every site of the world the nearest sites holding a light of each species, so
+ * that each agent's nearest light can then be looked up in constant time.  The nearest sites are found by jump
+ * flooding: each site repeatedly adopts the best of the candidates held by the sites at distance k in each of eight
+ * directions, with k halving from about half the world's size down to 1, followed by two more passes with k = 2 and
+ * 1 to mop up most of the errors that jump flooding can leave.  Since lights on an agent's own site are ignored, the
+ * best two lit sites are kept for every site, the second being the answer for agents on the first.  This takes time
+ * proportional to the area of the world times its logarithm per species, whatever the number of agents, and the
+ * sites are shared out between threads.
+ *
+ * Distances use the minimum image convention, and among equally near lights the earliest in the list of agents is
+ * chosen, as when scanning.  Species for which a field would cost more than looking at each of their lit sites for
+ * each member are answered that way instead, as are agents whose nearest light is out of sight when sight is measured
+ * other than by Euclidean distance, since a light further away may then still be in sight.
+ *
+ * The field is approximate: jump flooding can occasionally leave a site with a light that is not quite the nearest,
+ * so a run using it need not follow the same course as one that scans.
+ *
+ * @author richard
+ *
+ */
+
+class LightField {
+
+	// Rough cost of a field, in units of looking at one lit site for one agent, per site of the world
+	private static final int FIELD_COST = 100;
+
+	private World world;
+	private int sizex, sizey;
+	private List<Agent> agents;
+	// Coordinates of each site, numbered x*sizey + y
+	private int[] siteX, siteY;
+
+	// Per species: the lit sites, the first lit agent (in the order of the list of agents) on each, the number of
+	// members, and, if a field is kept, the best and second best lit site for every site (-1 if none)
+	private static class Species {
+		int[] sites = new int[8], first = new int[8];
+		int nsites = 0, members = 0;
+		int[] best, second;
+	}
+	private final Map<Integer, Species> species = new HashMap<Integer, Species>();
+
+	// First lit agent of the species being flooded on each site
+	private int[] first;
+
+	// Displacement of the light found by find()
+	int dx, dy;
+
+	/**
+	 * Compute the field for the lights as they are now
+	 *
+	 * @param world world whose lights are to be used
+	 */
+	void compute(World world) {
+		this.world = world;
+		agents = world.agents;
+		if(siteX == null || sizex != world.getSizeX() || sizey != world.getSizeY()) {
+			sizex = world.getSizeX();
+			sizey = world.getSizeY();
+			siteX = new int[sizex * sizey];
+			siteY = new int[sizex * sizey];
+			first = new int[sizex * sizey];
+			for(int p=0; p<siteX.length; p++) {
+				siteX[p] = p / sizey;
+				siteY[p] = p % sizey;
+			}
+		}
+
+		species.clear();
+		// Lit sites already seen for each species
+		Map<Long, Boolean> seen = new HashMap<Long, Boolean>();
+		for(int k=0; k<agents.size(); k++) {
+			Agent a = agents.get(k);
+			Species s = species.get(a.getSpeciesId());
+			if(s == null) species.put(a.getSpeciesId(), s = new Species());
+			s.members++;
+			if(!a.isLightOn()) continue;
+			int site = a.getX() * sizey + a.getY();
+			if(seen.put(((long)a.getSpeciesId() << 32) | site, Boolean.TRUE) == null) {
+				if(s.nsites == s.sites.length) {
+					s.sites = Arrays.copyOf(s.sites, 2 * s.nsites);
+					s.first = Arrays.copyOf(s.first, 2 * s.nsites);
+				}
+				s.sites[s.nsites] = site;
+				s.first[s.nsites++] = k;
+			}
+		}
+
+		for(Species s : species.values()) {
+			if((long)s.members * s.nsites > (long)FIELD_COST * siteX.length) flood(s);
+		}
+	}
+
+	// Squared distance, with the minimum image convention, between two sites
+	private int distance(int from, int to) {
+		int ddx = imageX(siteX[to] - siteX[from]), ddy = imageY(siteY[to] - siteY[from]);
+		return ddx * ddx + ddy * ddy;
+	}
+
+	private int imageX(int d) {
+		int h = sizex/2;
+		return d > h ? d - sizex : d < -h ? d + sizex : d;
+	}
+
+	private int imageY(int d) {
+		int h = sizey/2;
+		return d > h ? d - sizey : d < -h ? d + sizey : d;
+	}
+
+	// Jump flooding for one species
+	private void flood(Species s) {
+		int sites = siteX.length;
+		int[] best = new int[sites], second = new int[sites];
+		Arrays.fill(best, -1);
+		Arrays.fill(second, -1);
+		for(int m=0; m<s.nsites; m++) {
+			best[s.sites[m]] = s.sites[m];
+			first[s.sites[m]] = s.first[m];
+		}
+
+		int step = Math.max(1, Integer.highestOneBit(Math.max(sizex, sizey) / 2));
+		int[] steps = new int[Integer.numberOfTrailingZeros(step) + 3];
+		for(int i=0; step>=1; step>>=1) steps[i++] = step;
+		steps[steps.length - 2] = 2;
+		steps[steps.length - 1] = 1;
+
+		for(int k : steps) {
+			final int[] fromBest = best, fromSecond = second;
+			final int[] toBest = new int[sites], toSecond = new int[sites];
+			IntStream.range(0, sizex).parallel().forEach(x -> {
+				for(int y=0; y<sizey; y++) {
+					int p = x * sizey + y;
+					// Best two so far, and their distances
+					int b1 = -1, b2 = -1, d1 = 0, d2 = 0;
+					for(int ox=-k; ox<=k; ox+=k) {
+						for(int oy=-k; oy<=k; oy+=k) {
+							int q = ((x + ox + sizex) % sizex) * sizey + (y + oy + sizey) % sizey;
+							for(int c = fromBest[q], i = 0; i < 2 && c >= 0; c = fromSecond[q], i++) {
+								if(c == b1 || c == b2) continue;
+								int d = distance(p, c);
+								if(b1 < 0 || d < d1 || (d == d1 && first[c] < first[b1])) {
+									b2 = b1; d2 = d1;
+									b1 = c; d1 = d;
+								} else if(b2 < 0 || d < d2 || (d == d2 && first[c] < first[b2])) {
+									b2 = c; d2 = d;
+								}
+							}
+						}
+					}
+					toBest[p] = b1;
+					toSecond[p] = b2;
+				}
+			});
+			best = toBest;
+			second = toSecond;
+		}
+		s.best = best;
+		s.second = second;
+	}
+
+	/**
+	 * Find the nearest light visible to an agent, leaving its displacement in dx, dy (both 0 if there is none)
+	 *
+	 * @param k index of the agent
+	 */
+	void find(int k) {
+		Agent a = agents.get(k);
+		Species s = species.get(a.getSpeciesId());
+		int p = a.getX() * sizey + a.getY();
+		int light = -1;
+		if(s.best != null) {
+			light = s.best[p] != p ? s.best[p] : s.second[p];
+			if(light >= 0 && !world.canSee(imageX(siteX[light] - siteX[p]), imageY(siteY[light] - siteY[p]))) {
+				light = world.getVisibilityMetric() == World.Metric.EUCLIDEAN ? -1 : search(s, p);
+			}
+		} else {
+			light = search(s, p);
+		}
+		if(light < 0) {
+			dx = dy = 0;
+		} else {
+			dx = imageX(siteX[light] - a.getX());
+			dy = imageY(siteY[light] - a.getY());
+		}
+	}
+
+	// Look at every lit site of a species in sight of site p, other than p itself
+	private int search(Species s, int p) {
+		int light = -1, lightDistance = 0, lightFirst = 0;
+		for(int m=0; m<s.nsites; m++) {
+			int site = s.sites[m];
+			if(site == p || !world.canSee(imageX(siteX[site] - siteX[p]), imageY(siteY[site] - siteY[p]))) continue;
+			int d = distance(p, site);
+			if(light < 0 || d < lightDistance || (d == lightDistance && s.first[m] < lightFirst)) {
+				light = site;
+				lightDistance = d;
+				lightFirst = s.first[m];
+			}
+		}
+		return light;
+	}
+
+}
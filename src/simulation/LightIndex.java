@@ -0,0 +1,97 @@
+package simulation;
+
+import java.util.List;
+
+/**
+ * A structure that answers the question World.sweep() asks before every update: where is the nearest light that an
+ * agent can see?  The answer must be exactly the one found by scanning all the agents: the nearest (Euclidean
+ * distance, minimum image convention) agent of the same species whose light is on, other than the agent itself and
+ * any on the same site or out of sight (see World.setVisibility()), with ties going to whichever comes first in the
+ * list of agents.
+ *
+ * The structure is built from the list of agents, and kept up to date by calling remove() for an agent before it
+ * changes in any way (moves, relights, or is replaced by another agent) and insert() afterwards.
+ *
+ * @author richard
+ *
+ */
+
+abstract class LightIndex {
+
+	protected World world;
+	protected List<Agent> agents;
+	protected int sizex, sizey;
+
+	// Displacement of the light found by find()
+	int dx, dy;
+
+	/**
+	 * Build the structure from scratch
+	 *
+	 * @param world world whose agents are to be indexed
+	 */
+	void rebuild(World world) {
+		this.world = world;
+		agents = world.agents;
+		sizex = world.getSizeX();
+		sizey = world.getSizeY();
+	}
+
+	/**
+	 * Find the nearest light visible to an agent, leaving its displacement in dx, dy (both 0 if there is none)
+	 *
+	 * @param k index of the agent
+	 */
+	abstract void find(int k);
+
+	/**
+	 * Take an agent out of the structure, before it changes
+	 *
+	 * @param k index of the agent
+	 */
+	abstract void remove(int k);
+
+	/**
+	 * Put an agent back into the structure, after it has changed
+	 *
+	 * @param k index of the agent
+	 */
+	abstract void insert(int k);
+
+	// A set of agent indices with constant-time insertion and removal; pos records where each index is held, so an
+	// index can belong to only one of the sets sharing a pos array
+	protected static class IndexSet {
+		int[] items = new int[16];
+		int size = 0;
+
+		void add(int k, int[] pos) {
+			if(size == items.length) items = java.util.Arrays.copyOf(items, 2 * size);
+			pos[k] = size;
+			items[size++] = k;
+		}
+
+		// Add without keeping track of the position, for sets that are only ever emptied
+		void append(int k) {
+			if(size == items.length) items = java.util.Arrays.copyOf(items, 2 * size);
+			items[size++] = k;
+		}
+
+		void remove(int k, int[] pos) {
+			int last = items[--size];
+			items[pos[k]] = last;
+			pos[last] = pos[k];
+		}
+	}
+
+	// Minimum image of a displacement, exactly as in World
+	protected int imageX(int d) {
+		int h = sizex/2;
+		return d > h ? d - sizex : d < -h ? d + sizex : d;
+	}
+
+	protected int imageY(int d) {
+		int h = sizey/2;
+		return d > h ? d - sizey : d < -h ? d + sizey : d;
+	}
+
+}
@@ -0,0 +1,278 @@
+package simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Keeps the phylogeny of the species in a world: for each species, the species it arose from by mutation, the
+ * generation in which it arose, the genotype of its founder and its current abundance.  Species that are extinct and
+ * have no descendants left are forgotten as soon as they are found to be so, so what is kept is just the ancestry of
+ * the species now present.  That ancestry still grows by a species every time one takes over, so only the last STEM
+ * ancestors of the most recent common ancestor of the species present are kept, and memory stays bounded however
+ * long a run goes on.
+ *
+ * The tree is kept in arrays of primitives, indexed by slots that are reused as species are forgotten.  Queries walk
+ * up the tree from a species, so take time proportional to the number of its ancestors.  World updates the tracker
+ * from its own thread, and the queries may be made from any other, as the user interface does.
+ *
+ * Ancestry before the agents were last assigned, or a state last restored, is not known: the species present then
+ * are taken to be the roots of the tree, as is the oldest ancestor kept once older ones have been forgotten.
+ *
+ * @author richard
+ *
+ */
+
+public class LineageTracker {
+
+	/**
+	 * Number of ancestors of the most recent common ancestor of the species present that are kept
+	 */
+	public static final int STEM = 1000;
+
+	/**
+	 * A species in a lineage, as it was recorded when asked for
+	 */
+	public static class Ancestor {
+		public final int speciesId, birthGeneration, abundance;
+		// Genotype of the founder of the species
+		public final double contrast, brightness, motility, directedness;
+
+		Ancestor(int speciesId, int birthGeneration, int abundance, double contrast, double brightness, double motility, double directedness) {
+			this.speciesId = speciesId;
+			this.birthGeneration = birthGeneration;
+			this.abundance = abundance;
+			this.contrast = contrast;
+			this.brightness = brightness;
+			this.motility = motility;
+			this.directedness = directedness;
+		}
+	}
+
+	// Per slot: species id (-1 if the slot is free), parent's slot (-1 for a root), number of ancestors, generation of
+	// birth, number of agents in the species, and number of child species still held
+	private int[] id = new int[0], parent = new int[0], depth = new int[0], birth = new int[0], abundance = new int[0], children = new int[0];
+	// Per slot: genotype of the founder
+	private double[] contrast = new double[0], brightness = new double[0], motility = new double[0], directedness = new double[0];
+
+	// Slot of each species held, and slots free for reuse
+	private final Map<Integer, Integer> slotOf = new HashMap<Integer, Integer>();
+	private int[] free = new int[0];
+	private int freeCount = 0;
+	// Number of species held after the stem was last trimmed
+	private int trimmed = 0;
+
+	LineageTracker() { }
+
+	/**
+	 * Forget everything, and start again with the species of some agents as roots
+	 *
+	 * @param agents current agents
+	 * @param generation current generation
+	 */
+	synchronized void reset(List<Agent> agents, int generation) {
+		slotOf.clear();
+		Arrays.fill(id, -1);
+		freeCount = 0;
+		trimmed = 0;
+		for(int s=id.length-1; s>=0; s--) free[freeCount++] = s;
+		for(Agent a : agents) {
+			Integer s = slotOf.get(a.getSpeciesId());
+			if(s == null) s = add(a.getSpeciesId(), -1, generation, a);
+			abundance[s]++;
+		}
+	}
+
+	/**
+	 * Record the founding of a new species by a mutant
+	 *
+	 * @param speciesId id of the new species
+	 * @param parentId id of the species the founder's parent belonged to
+	 * @param generation generation into which the founder was born
+	 * @param founder the founder
+	 */
+	synchronized void found(int speciesId, int parentId, int generation, Agent founder) {
+		Integer p = slotOf.get(parentId);
+		int s = add(speciesId, p == null ? -1 : p, generation, founder);
+		// The founder is its only member so far
+		abundance[s] = 1;
+		if(p != null) children[p]++;
+	}
+
+	/**
+	 * Bring the abundances up to date, and forget the species that have died out without descendants
+	 *
+	 * @param abundances number of agents of each species, by id
+	 * @param extinct told the id of each species that has died out since the last census, if not null
+	 */
+	synchronized void census(IntUnaryOperator abundances, IntConsumer extinct) {
+		for(int s=0; s<id.length; s++) {
+			if(id[s] < 0) continue;
+			int n = abundances.applyAsInt(id[s]);
+			if(n == 0 && abundance[s] > 0 && extinct != null) extinct.accept(id[s]);
+			abundance[s] = n;
+		}
+		for(int s=0; s<id.length; s++) {
+			// A slot freed here can only be reused once this is over
+			for(int t=s; t>=0 && id[t]>=0 && abundance[t]==0 && children[t]==0; ) {
+				int p = parent[t];
+				slotOf.remove(id[t]);
+				id[t] = -1;
+				free[freeCount++] = t;
+				if(p >= 0) children[p]--;
+				t = p;
+			}
+		}
+		// Looking for the common ancestor takes a while, so only do it once the number held has doubled
+		if(slotOf.size() > 2 * Math.max(trimmed, STEM)) {
+			trimStem();
+			trimmed = slotOf.size();
+		}
+	}
+
+	// Forget all but the last STEM ancestors of the most recent common ancestor of the species present.  Each of them
+	// has only one child held, the next one down, or it would not be an ancestor of that common ancestor.
+	private void trimStem() {
+		int t = commonAncestor();
+		if(t < 0) return;
+		// Step past the common ancestor and the STEM ancestors kept above it
+		t = parent[t];
+		for(int k=0; k<STEM && t>=0; k++) t = parent[t];
+		if(t < 0) return;
+		for(int s=0; s<id.length; s++) {
+			if(id[s] >= 0 && parent[s] == t) parent[s] = -1;
+		}
+		while(t >= 0) {
+			int p = parent[t];
+			slotOf.remove(id[t]);
+			id[t] = -1;
+			free[freeCount++] = t;
+			t = p;
+		}
+	}
+
+	// Hold a species in a free slot, making more if needed
+	private int add(int speciesId, int parentSlot, int generation, Agent founder) {
+		if(freeCount == 0) {
+			int n = id.length, m = Math.max(16, 2 * n);
+			id = Arrays.copyOf(id, m);
+			parent = Arrays.copyOf(parent, m);
+			depth = Arrays.copyOf(depth, m);
+			birth = Arrays.copyOf(birth, m);
+			abundance = Arrays.copyOf(abundance, m);
+			children = Arrays.copyOf(children, m);
+			contrast = Arrays.copyOf(contrast, m);
+			brightness = Arrays.copyOf(brightness, m);
+			motility = Arrays.copyOf(motility, m);
+			directedness = Arrays.copyOf(directedness, m);
+			free = Arrays.copyOf(free, m);
+			for(int s=m-1; s>=n; s--) {
+				id[s] = -1;
+				free[freeCount++] = s;
+			}
+		}
+		int s = free[--freeCount];
+		id[s] = speciesId;
+		parent[s] = parentSlot;
+		depth[s] = parentSlot < 0 ? 0 : depth[parentSlot] + 1;
+		birth[s] = generation;
+		abundance[s] = 0;
+		children[s] = 0;
+		contrast[s] = founder.getContrast();
+		brightness[s] = founder.getBrightness();
+		motility[s] = founder.getMotility();
+		directedness[s] = founder.getDirectedness();
+		slotOf.put(speciesId, s);
+		return s;
+	}
+
+	/**
+	 * Number of species held: those present and their ancestors
+	 *
+	 * @return number of species
+	 */
+	public synchronized int size() {
+		return slotOf.size();
+	}
+
+	/**
+	 * Find the lineage of a species
+	 *
+	 * @param speciesId id of the species
+	 * @return the species and its ancestors, in order back to the root, or an empty list if the species is extinct
+	 * and has no descendants, or was never seen
+	 */
+	public synchronized List<Ancestor> getLineage(int speciesId) {
+		List<Ancestor> lineage = new ArrayList<Ancestor>();
+		Integer s = slotOf.get(speciesId);
+		for(int t = s == null ? -1 : s; t >= 0; t = parent[t]) {
+			lineage.add(new Ancestor(id[t], birth[t], abundance[t], contrast[t], brightness[t], motility[t], directedness[t]));
+		}
+		return lineage;
+	}
+
+	/**
+	 * Find the most recent common ancestor of two species, which is one of them if the other descends from it
+	 *
+	 * @param a id of one species
+	 * @param b id of the other
+	 * @return id of the common ancestor, or -1 if there is none, or either species is not held
+	 */
+	public synchronized int getCommonAncestor(int a, int b) {
+		Integer s = slotOf.get(a), t = slotOf.get(b);
+		if(s == null || t == null) return -1;
+		int c = commonAncestor(s, t);
+		return c < 0 ? -1 : id[c];
+	}
+
+	/**
+	 * Find the most recent common ancestor of all the species present
+	 *
+	 * @return id of the common ancestor, or -1 if there is none
+	 */
+	public synchronized int getCommonAncestor() {
+		int c = commonAncestor();
+		return c < 0 ? -1 : id[c];
+	}
+
+	// Slot of the most recent common ancestor of the species present, or -1 if none
+	private int commonAncestor() {
+		int c = -1;
+		boolean first = true;
+		for(int s=0; s<id.length; s++) {
+			if(id[s] < 0 || abundance[s] == 0) continue;
+			c = first ? s : commonAncestor(c, s);
+			first = false;
+			if(c < 0) break;
+		}
+		return c;
+	}
+
+	// Slot of the most recent common ancestor of the species in two slots, or -1 if none (either may be -1)
+	private int commonAncestor(int s, int t) {
+		// Once the stem has been trimmed, depths are only comparable within a tree, hence the checks for roots
+		while(s >= 0 && t >= 0 && depth[s] > depth[t]) s = parent[s];
+		while(s >= 0 && t >= 0 && depth[t] > depth[s]) t = parent[t];
+		while(s >= 0 && t >= 0 && s != t) {
+			s = parent[s];
+			t = parent[t];
+		}
+		return s == t ? s : -1;
+	}
+
+	/**
+	 * Generation in which a species arose
+	 *
+	 * @param speciesId id of the species
+	 * @return generation, or -1 if the species is not held
+	 */
+	public synchronized int getBirthGeneration(int speciesId) {
+		Integer s = slotOf.get(speciesId);
+		return s == null ? -1 : birth[s];
+	}
+
+}
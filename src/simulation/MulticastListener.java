@@ -0,0 +1,81 @@
+package simulation;
+
+import java.util.Arrays;
+
+/**
+ * Passes events on to several listeners in turn.  World holds its listeners as null when there are none, the
+ * listener itself when there is one, and one of these when there are more, so that with none or one, calling them
+ * costs no more than a check for null and a direct call.
+ *
+ * @author richard
+ *
+ */
+
+final class MulticastListener implements WorldListener {
+
+	private final WorldListener[] listeners;
+
+	private MulticastListener(WorldListener[] listeners) {
+		this.listeners = listeners;
+	}
+
+	/**
+	 * Add a listener to a set held as described above
+	 *
+	 * @param set current set (null, a listener or a multicast)
+	 * @param l listener to add
+	 * @return new set
+	 */
+	static WorldListener add(WorldListener set, WorldListener l) {
+		if(set == null) return l;
+		WorldListener[] current = set instanceof MulticastListener ? ((MulticastListener)set).listeners : new WorldListener[] { set };
+		WorldListener[] more = Arrays.copyOf(current, current.length + 1);
+		more[current.length] = l;
+		return new MulticastListener(more);
+	}
+
+	/**
+	 * Remove a listener from a set held as described above
+	 *
+	 * @param set current set (null, a listener or a multicast)
+	 * @param l listener to remove
+	 * @return new set
+	 */
+	static WorldListener remove(WorldListener set, WorldListener l) {
+		if(set == l) return null;
+		if(!(set instanceof MulticastListener)) return set;
+		WorldListener[] current = ((MulticastListener)set).listeners;
+		WorldListener[] fewer = new WorldListener[current.length];
+		int n = 0;
+		for(WorldListener c : current) {
+			if(c != l) fewer[n++] = c;
+		}
+		return n == 0 ? null : n == 1 ? fewer[0] : new MulticastListener(Arrays.copyOf(fewer, n));
+	}
+
+	@Override
+	public void onSweepEnd(World world) {
+		for(WorldListener l : listeners) l.onSweepEnd(world);
+	}
+
+	@Override
+	public void onGeneration(World world, int generation) {
+		for(WorldListener l : listeners) l.onGeneration(world, generation);
+	}
+
+	@Override
+	public void onSpeciesCreated(World world, int speciesId, int parentId) {
+		for(WorldListener l : listeners) l.onSpeciesCreated(world, speciesId, parentId);
+	}
+
+	@Override
+	public void onSpeciesExtinct(World world, int speciesId) {
+		for(WorldListener l : listeners) l.onSpeciesExtinct(world, speciesId);
+	}
+
+	@Override
+	public void onDominanceChange(World world, int speciesId, int previousId) {
+		for(WorldListener l : listeners) l.onDominanceChange(world, speciesId, previousId);
+	}
+
+}
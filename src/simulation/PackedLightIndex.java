@@ -0,0 +1,152 @@
+package simulation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the positions of each species' lit agents packed into arrays of ints, and scans them as the plain search
+ * does, but without going through the agents.  The distances are worked out in one loop with no branches, and the
+ * nearest picked out in another, written so that the JIT compiler can turn them into vector instructions (AVX2 or
+ * AVX-512 on x86).  Whether it does depends on the JVM and on how the loops are compiled; C2 in Java 17, for
+ * instance, leaves them scalar when they are inlined into a loop compiled on stack replacement, as the sweep loop
+ * usually is.  Even so, the packed arrays make this several times faster than going through the agents.  Keeping
+ * the arrays up to date is cheap, so this suits any number of lights, but every search still costs a pass over the
+ * lights of the species.
+ *
+ * @author richard
+ *
+ */
+
+class PackedLightIndex extends LightIndex {
+
+	// The lit agents of one species: their positions and indices, in no particular order
+	private static class Lights {
+		int[] x = new int[16], y = new int[16], agent = new int[16];
+		int size = 0;
+	}
+
+	private final Map<Integer, Lights> species = new HashMap<Integer, Lights>();
+	// Per agent: the lights it is held in (null if its light was off when inserted) and where
+	private Lights[] heldIn;
+	private int[] pos;
+	// Distances worked out by find()
+	private int[] distance = new int[16];
+
+	@Override
+	void rebuild(World world) {
+		super.rebuild(world);
+		species.clear();
+		int n = agents.size();
+		heldIn = new Lights[n];
+		pos = new int[n];
+		for(int k=0; k<n; k++) insert(k);
+	}
+
+	@Override
+	void remove(int k) {
+		Lights l = heldIn[k];
+		if(l == null) return;
+		int last = --l.size, p = pos[k];
+		l.x[p] = l.x[last];
+		l.y[p] = l.y[last];
+		l.agent[p] = l.agent[last];
+		pos[l.agent[p]] = p;
+		heldIn[k] = null;
+	}
+
+	@Override
+	void insert(int k) {
+		Agent a = agents.get(k);
+		if(!a.isLightOn()) return;
+		Lights l = species.get(a.getSpeciesId());
+		if(l == null) species.put(a.getSpeciesId(), l = new Lights());
+		if(l.size == l.x.length) {
+			l.x = Arrays.copyOf(l.x, 2 * l.size);
+			l.y = Arrays.copyOf(l.y, 2 * l.size);
+			l.agent = Arrays.copyOf(l.agent, 2 * l.size);
+		}
+		l.x[l.size] = a.getX();
+		l.y[l.size] = a.getY();
+		l.agent[l.size] = k;
+		pos[k] = l.size++;
+		heldIn[k] = l;
+	}
+
+	// The squared distances from (ax, ay) to the first n lights in x, y, with the largest possible distance for those
+	// on the same site.  This loop, and the one below, must stay free of branches and of calls such as Math.abs() (but
+	// Math.min() is fine), or they will not be vectorised.  Both wraps of the minimum image are decided on the displacement before either is
+	// applied, which gives the same answer as imageX() and imageY() since at most one applies: (h - d) >> 31 is all
+	// ones if d > h, and (d + h) >> 31 if d < -h.
+	private static void distances(int[] x, int[] y, int[] d2, int n, int ax, int ay, int sx, int sy) {
+		int hx = sx/2, hy = sy/2;
+		for(int m=0; m<n; m++) {
+			int ddx = x[m] - ax, ddy = y[m] - ay;
+			ddx += (sx & ((ddx + hx) >> 31)) - (sx & ((hx - ddx) >> 31));
+			ddy += (sy & ((ddy + hy) >> 31)) - (sy & ((hy - ddy) >> 31));
+			int d = ddx * ddx + ddy * ddy;
+			d2[m] = d | (((d - 1) >> 31) & Integer.MAX_VALUE);
+		}
+	}
+
+	// As above, also giving the largest possible distance to lights that are further away than reach, measured by
+	// the metric picked out by the masks (all ones for the one in use, zero for the others)
+	private static void distances(int[] x, int[] y, int[] d2, int n, int ax, int ay, int sx, int sy,
+			int reach, int euclidean, int chebyshev, int manhattan) {
+		int hx = sx/2, hy = sy/2;
+		for(int m=0; m<n; m++) {
+			int ddx = x[m] - ax, ddy = y[m] - ay;
+			ddx += (sx & ((ddx + hx) >> 31)) - (sx & ((hx - ddx) >> 31));
+			ddy += (sy & ((ddy + hy) >> 31)) - (sy & ((hy - ddy) >> 31));
+			int d = ddx * ddx + ddy * ddy;
+			int ex = (ddx ^ (ddx >> 31)) - (ddx >> 31), ey = (ddy ^ (ddy >> 31)) - (ddy >> 31);
+			int most = ex - ((ex - ey) & ((ex - ey) >> 31));
+			int far = (d & euclidean) | (most & chebyshev) | ((ex + ey) & manhattan);
+			d2[m] = d | ((((d - 1) | (reach - far)) >> 31) & Integer.MAX_VALUE);
+		}
+	}
+
+	// Position of the nearest of the first n lights, given their distances and agents, or -1 if there is none; the
+	// smallest distance is found first, in a loop that can be vectorised, and then the first agent at that distance
+	private static int nearest(int[] d2, int[] agent, int n) {
+		int nearest = Integer.MAX_VALUE;
+		for(int m=0; m<n; m++) nearest = Math.min(nearest, d2[m]);
+		int best = -1;
+		if(nearest < Integer.MAX_VALUE) {
+			for(int m=0; m<n; m++) {
+				if(d2[m] == nearest && (best < 0 || agent[m] < agent[best])) best = m;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	void find(int k) {
+		Agent a = agents.get(k);
+		Lights l = species.get(a.getSpeciesId());
+		dx = dy = 0;
+		if(l == null || l.size == 0) return;
+		int n = l.size;
+		if(distance.length < n) distance = new int[l.x.length];
+
+		// How far away a light can be and still be seen, in the measure given by the metric (squared if Euclidean),
+		// and masks (all ones or zero) picking out the metric
+		double r = world.getVisibility();
+		World.Metric metric = world.getVisibilityMetric();
+		int reach = (int)Math.min(Integer.MAX_VALUE, Math.floor(metric == World.Metric.EUCLIDEAN ? r * r : r));
+		int euclidean = metric == World.Metric.EUCLIDEAN ? -1 : 0, chebyshev = metric == World.Metric.CHEBYSHEV ? -1 : 0;
+		int manhattan = ~(euclidean | chebyshev);
+
+		int[] x = l.x, y = l.y, d2 = distance;
+		int ax = a.getX(), ay = a.getY();
+		if(reach == Integer.MAX_VALUE) distances(x, y, d2, n, ax, ay, sizex, sizey);
+		else distances(x, y, d2, n, ax, ay, sizex, sizey, reach, euclidean, chebyshev, manhattan);
+
+		int best = nearest(d2, l.agent, n);
+		if(best >= 0) {
+			dx = imageX(x[best] - ax);
+			dy = imageY(y[best] - ay);
+		}
+	}
+
+}
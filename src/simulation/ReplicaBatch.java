@@ -0,0 +1,269 @@
+package simulation;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs the sweeps of a number of independent worlds (replicas) together.  Worlds as small as the usual ones spend
+ * much of their time on overheads and on chasing references from one agent to the next, so for the sweeps the state
+ * of every agent of every replica is packed into shared arrays of primitives, one block of agents after another, and
+ * all the replicas are advanced one sweep at a time in a single loop.  Between the sweeps, and for everything else
+ * (reproduction, tracking dominance, summaries), each replica is an ordinary World.
+ *
+ * Only replicas with the sequential engine, and with no recorder or sweep listener, are packed.  Each of these draws
+ * on its own generator in exactly the order World.sweep() does, and finds lights by the same rules, so ends in exactly
+ * the state it would reach on its own, whatever light search it has been given.  Any other replica has its sweeps run
+ * by World.sweeps(), one replica after another, so it too ends as it would on its own, and its recorder and sweep
+ * listeners are told of every sweep.  Overlapping generations are not supported.
+ *
+ * @author richard
+ *
+ */
+
+public class ReplicaBatch {
+
+	private final World[] replicas;
+
+	// Per replica: where its agents and sites start in the arrays below, how many of them there are, and how many of
+	// the agents have their lights on
+	private final int[] agentOffset, agentCount, siteOffset, sizex, sizey, litCount;
+
+	// Per agent, replica by replica: position, food consumed, species, light, and the traits that updates need
+	private int[] posx, posy, food, species;
+	private boolean[] light, reversed;
+	private double[] motility, directedness, lightOnFood, lightOffFood;
+	// The agents with their lights on, in no particular order, at the start of each replica's block; and where each is
+	private int[] lit, litPos;
+
+	// Per site, replica by replica: whether there is food
+	private boolean[] foodAt;
+
+	// The eight non-zero steps, in the order of Agent's table
+	private static final int[] STEP_X = { -1, -1, -1, 0, 0, 1, 1, 1 }, STEP_Y = { -1, 0, 1, -1, 1, -1, 0, 1 };
+
+	/**
+	 * Create a batch from some worlds, which may differ in every respect
+	 *
+	 * @param worlds replicas, each of which should be set up with its own generator
+	 */
+	public ReplicaBatch(List<World> worlds) {
+		replicas = worlds.toArray(new World[0]);
+		int n = replicas.length;
+		agentOffset = new int[n];
+		agentCount = new int[n];
+		siteOffset = new int[n];
+		sizex = new int[n];
+		sizey = new int[n];
+		litCount = new int[n];
+		posx = posy = food = species = lit = litPos = new int[0];
+		light = reversed = new boolean[0];
+		motility = directedness = lightOnFood = lightOffFood = new double[0];
+		foodAt = new boolean[0];
+	}
+
+	public List<World> getReplicas() {
+		return Arrays.asList(replicas);
+	}
+
+	/**
+	 * Run a number of sweeps in every replica
+	 *
+	 * @param n number of sweeps
+	 */
+	public void sweeps(int n) {
+		boolean[] active = new boolean[replicas.length];
+		Arrays.fill(active, true);
+		sweeps(n, active);
+	}
+
+	/**
+	 * Run a generation in every replica, as World.evolve() does
+	 *
+	 * @param sweeps number of sweeps per generation
+	 * @param agentMutate probability of mutation per offspring
+	 */
+	public void evolve(int sweeps, double agentMutate) {
+		boolean[] active = new boolean[replicas.length];
+		for(int r=0; r<replicas.length; r++) {
+			if(replicas[r].getMoranRate() > 0.0) throw new IllegalStateException("replica " + r + " has overlapping generations");
+			replicas[r].shuffleFood();
+			active[r] = !replicas[r].skipsSweeps();
+		}
+		sweeps(sweeps, active);
+		for(int r=0; r<replicas.length; r++) {
+			replicas[r].endGeneration(agentMutate, !active[r]);
+		}
+	}
+
+	// Run sweeps in the replicas marked active
+	private void sweeps(int n, boolean[] active) {
+		// Those that the loop below cannot reproduce, or whose every sweep must be seen, are run on their own
+		boolean[] packed = new boolean[replicas.length];
+		for(int r=0; r<replicas.length; r++) {
+			World w = replicas[r];
+			packed[r] = active[r] && w.getEngine() == World.Engine.SEQUENTIAL && !w.observesSweeps();
+			if(active[r] && !packed[r]) w.sweeps(n);
+		}
+		pack();
+		Random[] rngs = new Random[replicas.length];
+		for(int r=0; r<replicas.length; r++) {
+			rngs[r] = replicas[r].getWorldRNG();
+		}
+		// A whole sweep of one replica at a time keeps its block in the cache
+		for(int t=0; t<n; t++) {
+			for(int r=0; r<replicas.length; r++) {
+				if(!packed[r]) continue;
+				Random rng = rngs[r];
+				int offset = agentOffset[r], count = agentCount[r];
+				for(int i=0; i<count; i++) {
+					update(r, offset + rng.nextInt(count), rng);
+				}
+			}
+		}
+		unpack(packed);
+	}
+
+	// Copy the state of all the replicas into the arrays
+	private void pack() {
+		int agents = 0, sites = 0;
+		for(int r=0; r<replicas.length; r++) {
+			World w = replicas[r];
+			agentOffset[r] = agents;
+			agentCount[r] = w.agents.size();
+			siteOffset[r] = sites;
+			sizex[r] = w.getSizeX();
+			sizey[r] = w.getSizeY();
+			agents += agentCount[r];
+			sites += sizex[r] * sizey[r];
+		}
+		if(posx.length < agents) {
+			posx = new int[agents];
+			posy = new int[agents];
+			food = new int[agents];
+			species = new int[agents];
+			light = new boolean[agents];
+			reversed = new boolean[agents];
+			motility = new double[agents];
+			directedness = new double[agents];
+			lightOnFood = new double[agents];
+			lightOffFood = new double[agents];
+			lit = new int[agents];
+			litPos = new int[agents];
+		}
+		if(foodAt.length < sites) foodAt = new boolean[sites];
+
+		for(int r=0; r<replicas.length; r++) {
+			World w = replicas[r];
+			int k = agentOffset[r];
+			litCount[r] = 0;
+			for(Agent a : w.agents) {
+				Genotype g = a.getGenotype();
+				posx[k] = a.getX();
+				posy[k] = a.getY();
+				food[k] = a.getFoodConsumed();
+				species[k] = a.getSpeciesId();
+				light[k] = a.isLightOn();
+				reversed[k] = g.reversed;
+				motility[k] = g.motility;
+				directedness[k] = g.directedness;
+				lightOnFood[k] = g.lightOnFood;
+				lightOffFood[k] = g.lightOffFood;
+				if(light[k]) addLight(r, k);
+				k++;
+			}
+			int s = siteOffset[r];
+			for(int x=0; x<sizex[r]; x++) {
+				for(int y=0; y<sizey[r]; y++) {
+					foodAt[s++] = w.isFoodAt(x, y);
+				}
+			}
+		}
+	}
+
+	// Copy the state of the agents in the replicas marked active back into them
+	private void unpack(boolean[] active) {
+		for(int r=0; r<replicas.length; r++) {
+			if(!active[r]) continue;
+			int k = agentOffset[r];
+			for(Agent a : replicas[r].getAgents()) {
+				a.setPosition(posx[k], posy[k]);
+				a.setFoodConsumed(food[k]);
+				a.setLightOn(light[k]);
+				k++;
+			}
+			replicas[r].agentsChanged();
+		}
+	}
+
+	// Update agent k of replica r, as World.sweep() and Agent.respond() would
+	private void update(int r, int k, Random rng) {
+		World w = replicas[r];
+		int sx = sizex[r], sy = sizey[r], hsx = sx/2, hsy = sy/2;
+		int ax = posx[k], ay = posy[k], sid = species[k];
+		boolean limited = w.getVisibility() != Double.POSITIVE_INFINITY;
+
+		// Find the nearest light, as World.findLight() does; since the lights are in no particular order, ties are
+		// broken explicitly in favour of the one earlier in the list of agents
+		int dx = 0, dy = 0, nearest = -1;
+		for(int m=agentOffset[r], end=m+litCount[r]; m<end; m++) {
+			int j = lit[m];
+			if(j == k || species[j] != sid) continue;
+			int abdx = posx[j] - ax, abdy = posy[j] - ay;
+			if(abdx == 0 && abdy == 0) continue;
+			if(abdx > hsx) abdx -= sx;
+			else if(abdx < - hsx) abdx += sx;
+			if(abdy > hsy) abdy -= sy;
+			else if(abdy < - hsy) abdy += sy;
+			if(limited && !w.canSee(abdx, abdy)) continue;
+			int d = abdx * abdx + abdy * abdy, best = dx * dx + dy * dy;
+			if(nearest < 0 || d < best || (d == best && j < nearest)) {
+				nearest = j;
+				dx = abdx;
+				dy = abdy;
+			}
+		}
+
+		// Move, as Agent.move() does
+		if(rng.nextDouble() < motility[k]) {
+			double d = directedness[k];
+			if(!(dx == 0 && dy == 0) && (d == 1.0 || rng.nextDouble() < d)) {
+				dx = reversed[k] ? -Integer.signum(dx) : Integer.signum(dx);
+				dy = reversed[k] ? -Integer.signum(dy) : Integer.signum(dy);
+			} else if(w.tableDraws) {
+				int m = rng.nextInt(8);
+				dx = STEP_X[m]; dy = STEP_Y[m];
+			} else {
+				dx = dy = 0;
+				while (dx == 0 && dy == 0) {
+					dx = rng.nextInt(3)-1; dy = rng.nextInt(3)-1;
+				}
+			}
+			posx[k] = ax = (ax + dx + sx) % sx;
+			posy[k] = ay = (ay + dy + sy) % sy;
+		}
+
+		// Eat and light up, as Agent.settle() does
+		boolean onFood = foodAt[siteOffset[r] + ax * sy + ay];
+		if(onFood) food[k]++;
+		boolean on = rng.nextDouble() < (onFood ? lightOnFood[k] : lightOffFood[k]);
+		if(on != light[k]) {
+			if(on) addLight(r, k);
+			else removeLight(r, k);
+			light[k] = on;
+		}
+	}
+
+	private void addLight(int r, int k) {
+		int m = agentOffset[r] + litCount[r]++;
+		lit[m] = k;
+		litPos[k] = m;
+	}
+
+	private void removeLight(int r, int k) {
+		int last = lit[agentOffset[r] + --litCount[r]];
+		lit[litPos[k]] = last;
+		litPos[last] = litPos[k];
+	}
+
+}
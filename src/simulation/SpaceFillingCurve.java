@@ -0,0 +1,103 @@
+package simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Positions of sites along the curves of World.AgentOrder, and a radix sort of agents by them.  Both curves visit
+ * every site of a square of side 2^bits, and nearby points on them are nearby in space, so agents sorted along a curve
+ * that are near each other in the world are mostly near each other in the list, and in memory.
+ *
+ * @author richard
+ *
+ */
+
+final class SpaceFillingCurve {
+
+	private SpaceFillingCurve() {
+	}
+
+	/**
+	 * Number of bits needed for each coordinate of a world of the given size
+	 */
+	static int bits(int sizex, int sizey) {
+		return 32 - Integer.numberOfLeadingZeros(Math.max(Math.max(sizex, sizey) - 1, 1));
+	}
+
+	/**
+	 * Position of (x, y) along the Morton (Z-order) curve: the bits of x and y interleaved
+	 */
+	static int morton(int x, int y) {
+		return spread(x) | (spread(y) << 1);
+	}
+
+	// Spread the low 16 bits of v out to the even bits
+	private static int spread(int v) {
+		v &= 0xffff;
+		v = (v | (v << 8)) & 0x00ff00ff;
+		v = (v | (v << 4)) & 0x0f0f0f0f;
+		v = (v | (v << 2)) & 0x33333333;
+		v = (v | (v << 1)) & 0x55555555;
+		return v;
+	}
+
+	/**
+	 * Position of (x, y) along the Hilbert curve filling a square of side 2^bits
+	 */
+	static int hilbert(int bits, int x, int y) {
+		int d = 0;
+		for(int s = (1 << bits) >> 1; s > 0; s >>= 1) {
+			int rx = (x & s) != 0 ? 1 : 0, ry = (y & s) != 0 ? 1 : 0;
+			d += s * s * ((3 * rx) ^ ry);
+			// Rotate the quadrant so that the curve within it runs the right way
+			if(ry == 0) {
+				if(rx == 1) {
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+			x &= s - 1;
+			y &= s - 1;
+		}
+		return d;
+	}
+
+	/**
+	 * Sort agents along a curve, keeping the order of those on the same site.  This is a least significant digit radix
+	 * sort, a byte at a time, so takes time linear in the number of agents.
+	 *
+	 * @param agents agents to sort, in place
+	 * @param order curve to sort along, MORTON or HILBERT
+	 * @param bits number of bits in each coordinate
+	 */
+	static void sort(List<Agent> agents, World.AgentOrder order, int bits) {
+		int n = agents.size();
+		int[] key = new int[n], index = new int[n], nextKey = new int[n], nextIndex = new int[n];
+		for(int i=0; i<n; i++) {
+			Agent a = agents.get(i);
+			key[i] = order == World.AgentOrder.HILBERT ? hilbert(bits, a.getX(), a.getY()) : morton(a.getX(), a.getY());
+			index[i] = i;
+		}
+		int[] count = new int[257];
+		for(int shift=0; shift<2*bits; shift+=8) {
+			Arrays.fill(count, 0);
+			for(int i=0; i<n; i++) count[((key[i] >>> shift) & 0xff) + 1]++;
+			for(int b=0; b<256; b++) count[b+1] += count[b];
+			for(int i=0; i<n; i++) {
+				int to = count[(key[i] >>> shift) & 0xff]++;
+				nextKey[to] = key[i];
+				nextIndex[to] = index[i];
+			}
+			int[] t = key; key = nextKey; nextKey = t;
+			t = index; index = nextIndex; nextIndex = t;
+		}
+		List<Agent> sorted = new ArrayList<Agent>(n);
+		for(int i=0; i<n; i++) sorted.add(agents.get(index[i]));
+		for(int i=0; i<n; i++) agents.set(i, sorted.get(i));
+	}
+
+}
@@ -0,0 +1,190 @@
+package simulation;
+
+import java.util.Arrays;
+
+/**
+ * Number of agents of each species present, kept up to date one birth or death at a time, along with the sums needed
+ * for the diversity indices in World.Summary: the number of agents, the number of species, the sum of the squares of
+ * the counts and the sum of n ln n over the counts n.  The counts are held in an open-addressing hash table of ints,
+ * so keeping them costs no allocation once the table is large enough.
+ *
+ * @author richard
+ *
+ */
+
+final class SpeciesCounts {
+
+	// Species ids and their counts, by linear probing; a key of -1 marks an empty slot, and only species with agents
+	// are held
+	private int[] keys, counts;
+	private int bits, species, total;
+	private long sumSquares;
+	private double sumNLogN;
+
+	SpeciesCounts() {
+		allocate(4);
+	}
+
+	private void allocate(int b) {
+		bits = b;
+		keys = new int[1 << b];
+		counts = new int[1 << b];
+		Arrays.fill(keys, -1);
+	}
+
+	private int slot(int sid) {
+		int mask = keys.length - 1, s = (sid * 0x9E3779B9) >>> (32 - bits);
+		while(keys[s] >= 0 && keys[s] != sid) s = (s + 1) & mask;
+		return s;
+	}
+
+	private static double nLogN(int n) {
+		return n == 0 ? 0.0 : n * Math.log(n);
+	}
+
+	/**
+	 * Forget all the counts
+	 */
+	void clear() {
+		Arrays.fill(keys, -1);
+		Arrays.fill(counts, 0);
+		species = total = 0;
+		sumSquares = 0;
+		sumNLogN = 0.0;
+	}
+
+	/**
+	 * Count some agents more of a species
+	 *
+	 * @param sid species id
+	 * @param n number of agents
+	 * @return the new count for the species
+	 */
+	int add(int sid, int n) {
+		int s = slot(sid);
+		if(keys[s] < 0) {
+			if(2 * (species + 1) > keys.length) {
+				grow();
+				s = slot(sid);
+			}
+			keys[s] = sid;
+			species++;
+		}
+		int c = counts[s];
+		counts[s] = c + n;
+		total += n;
+		sumSquares += (long)(c + n) * (c + n) - (long)c * c;
+		sumNLogN += nLogN(c + n) - nLogN(c);
+		return c + n;
+	}
+
+	int add(int sid) {
+		return add(sid, 1);
+	}
+
+	/**
+	 * Count one agent fewer of a species, which must be present
+	 *
+	 * @param sid species id
+	 */
+	void remove(int sid) {
+		int s = slot(sid), c = counts[s];
+		assert keys[s] == sid && c > 0;
+		total--;
+		sumSquares -= 2L * c - 1;
+		sumNLogN += nLogN(c - 1) - nLogN(c);
+		if(c > 1) {
+			counts[s] = c - 1;
+			return;
+		}
+		// Empty the slot, and move back any later entries of the same run that could be in it
+		species--;
+		int mask = keys.length - 1;
+		for(int next = (s + 1) & mask; keys[next] >= 0; next = (next + 1) & mask) {
+			int home = (keys[next] * 0x9E3779B9) >>> (32 - bits);
+			// The entry can move back to s unless its home lies cyclically in (s, next]
+			if(((next - home) & mask) >= ((next - s) & mask)) {
+				keys[s] = keys[next];
+				counts[s] = counts[next];
+				s = next;
+			}
+		}
+		keys[s] = -1;
+		counts[s] = 0;
+	}
+
+	private void grow() {
+		int[] k = keys, c = counts;
+		allocate(bits + 1);
+		for(int s=0; s<k.length; s++) {
+			if(k[s] < 0) continue;
+			int t = slot(k[s]);
+			keys[t] = k[s];
+			counts[t] = c[s];
+		}
+	}
+
+	/**
+	 * Number of agents of a species
+	 *
+	 * @param sid species id
+	 * @return count, zero if none
+	 */
+	int get(int sid) {
+		int s = slot(sid);
+		return keys[s] < 0 ? 0 : counts[s];
+	}
+
+	int getSpecies() {
+		return species;
+	}
+
+	int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Shannon diversity, - sum p ln p over the proportions p of the species, worked out as ln N - (sum n ln n) / N
+	 */
+	double getShannon() {
+		return total == 0 ? 0.0 : Math.max(0.0, Math.log(total) - sumNLogN / total);
+	}
+
+	/**
+	 * Gini-Simpson diversity, 1 - sum p^2: the probability that two agents drawn with replacement are of different
+	 * species
+	 */
+	double getSimpson() {
+		return total == 0 ? 0.0 : 1.0 - (double)sumSquares / ((double)total * total);
+	}
+
+	/**
+	 * Work out the sum of n ln n afresh, since adding and taking away the terms one at a time slowly accumulates
+	 * rounding errors
+	 */
+	void resum() {
+		sumNLogN = 0.0;
+		for(int s=0; s<keys.length; s++) {
+			if(keys[s] >= 0) sumNLogN += nLogN(counts[s]);
+		}
+	}
+
+	/**
+	 * Counts of all the species present
+	 *
+	 * @return counts, largest first
+	 */
+	int[] getAbundances() {
+		int[] a = new int[species];
+		int n = 0;
+		for(int s=0; s<keys.length; s++) {
+			if(keys[s] >= 0) a[n++] = counts[s];
+		}
+		Arrays.sort(a);
+		for(int i=0, j=n-1; i<j; i++, j--) {
+			int t = a[i]; a[i] = a[j]; a[j] = t;
+		}
+		return a;
+	}
+
+}
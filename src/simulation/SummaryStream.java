@@ -0,0 +1,271 @@
+package simulation;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import simulation.World.Summary;
+
+/**
+ * A publisher of per-generation summaries.  The simulation thread calls publish() once per generation; each
+ * subscriber has its own bounded ring buffer, so a subscriber that does not keep up cannot make the
+ * stream grow without bound.  What happens when a buffer is full is chosen per subscriber (see Policy).
+ *
+ * Only one thread may call publish() and close() at a time (the simulation thread); items are delivered to
+ * each subscriber through the executor given when it subscribed, one item at a time and in order.
+ *
+ * @author richard
+ *
+ */
+
+public class SummaryStream implements Flow.Publisher<Summary> {
+
+	/**
+	 * What to do with a new summary when a subscriber's buffer is full
+	 */
+	public enum Policy {
+		/** Discard the new summary */
+		DROP,
+		/** Discard the new summary, and from now on only keep every other one offered (recovering as the buffer empties) */
+		DECIMATE,
+		/** Make the simulation thread wait until there is space */
+		BLOCK
+	}
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	// How long a blocked publisher waits before checking the buffer again, in case a wakeup was missed
+	private static final long BLOCK_PARK_NANOS = 1000000L;
+
+	// Executor used for subscribers that don't specify their own
+	private final Executor executor;
+
+	private final CopyOnWriteArrayList<Channel> channels = new CopyOnWriteArrayList<Channel>();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a stream that delivers to subscribers on the common fork-join pool
+	 */
+	public SummaryStream() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Create a stream that delivers to subscribers using the given executor by default
+	 *
+	 * @param executor default delivery executor
+	 */
+	public SummaryStream(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Subscribe with the DROP policy and default buffer capacity
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super Summary> subscriber) {
+		subscribe(subscriber, Policy.DROP, DEFAULT_CAPACITY, executor);
+	}
+
+	/**
+	 * Subscribe with a given overflow policy and buffer capacity, delivering on the stream's default executor
+	 *
+	 * @param subscriber subscriber to receive summaries
+	 * @param policy what to do when the buffer is full
+	 * @param capacity minimum number of summaries buffered for this subscriber (rounded up to a power of two)
+	 */
+	public void subscribe(Flow.Subscriber<? super Summary> subscriber, Policy policy, int capacity) {
+		subscribe(subscriber, policy, capacity, executor);
+	}
+
+	/**
+	 * Subscribe with a given overflow policy and buffer capacity, delivering on the given executor
+	 * (e.g., SwingUtilities::invokeLater to receive summaries on the event dispatch thread)
+	 *
+	 * @param subscriber subscriber to receive summaries
+	 * @param policy what to do when the buffer is full
+	 * @param capacity minimum number of summaries buffered for this subscriber (rounded up to a power of two)
+	 * @param delivery executor on which onNext, onComplete and onError are called
+	 */
+	public void subscribe(Flow.Subscriber<? super Summary> subscriber, Policy policy, int capacity, Executor delivery) {
+		if(subscriber == null || policy == null || delivery == null) throw new NullPointerException();
+		if(capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+		Channel ch = new Channel(subscriber, policy, capacity, delivery);
+		channels.add(ch);
+		subscriber.onSubscribe(ch);
+		if(closed) ch.signal();
+	}
+
+	/**
+	 * Find out if anyone is listening, so that a producer can avoid building summaries nobody will read
+	 *
+	 * @return true if at least one subscription is active
+	 */
+	public boolean hasSubscribers() {
+		return !channels.isEmpty();
+	}
+
+	/**
+	 * Offer a summary to every subscriber; the object is shared between subscribers, so should not be modified afterwards
+	 *
+	 * @param summary summary to publish
+	 */
+	public void publish(Summary summary) {
+		if(closed) throw new IllegalStateException("stream is closed");
+		for(Channel ch : channels) ch.offer(summary);
+	}
+
+	/**
+	 * Signal completion: each subscriber receives onComplete once it has consumed everything already published
+	 */
+	public void close() {
+		closed = true;
+		for(Channel ch : channels) ch.signal();
+	}
+
+	/**
+	 * The per-subscriber buffer: a single-producer, single-consumer ring.  The producer is whichever thread calls
+	 * publish(); the consumer is the (at most one) drain task running on the delivery executor.
+	 */
+	private class Channel implements Flow.Subscription, Runnable {
+		private final Flow.Subscriber<? super Summary> subscriber;
+		private final Policy policy;
+		private final Executor delivery;
+
+		private final Summary[] ring;
+		private final int mask;
+
+		// Next slot to write (written by producer only) and next slot to read (written by consumer only)
+		private final AtomicLong tail = new AtomicLong();
+		private final AtomicLong head = new AtomicLong();
+
+		// Outstanding demand from the subscriber
+		private final AtomicLong demand = new AtomicLong();
+
+		// 0 when idle, 1 when a drain task has been submitted or is running
+		private final AtomicInteger draining = new AtomicInteger();
+
+		private volatile boolean cancelled = false;
+		private volatile Thread blockedProducer = null;
+
+		// Producer-local state for decimation
+		private long offered = 0;
+		private int stride = 1;
+
+		Channel(Flow.Subscriber<? super Summary> subscriber, Policy policy, int capacity, Executor delivery) {
+			this.subscriber = subscriber;
+			this.policy = policy;
+			this.delivery = delivery;
+			int size = 1;
+			while(size < capacity) size <<= 1;
+			ring = new Summary[size];
+			mask = size - 1;
+		}
+
+		void offer(Summary s) {
+			if(cancelled) return;
+			long t = tail.get();
+			switch(policy) {
+			case DROP:
+				if(t - head.get() > mask) return;
+				break;
+			case DECIMATE:
+				// Relax the stride again once the subscriber has caught up
+				if(stride > 1 && t - head.get() < (ring.length >> 2)) stride >>= 1;
+				if(offered++ % stride != 0) return;
+				if(t - head.get() > mask) {
+					stride <<= 1;
+					return;
+				}
+				break;
+			case BLOCK:
+				while(t - head.get() > mask) {
+					blockedProducer = Thread.currentThread();
+					if(t - head.get() > mask && !cancelled) LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+					blockedProducer = null;
+					if(cancelled) return;
+				}
+				break;
+			}
+			ring[(int)t & mask] = s;
+			tail.set(t + 1);
+			signal();
+		}
+
+		/*
+		 * Make sure a drain task is scheduled if there is anything it can do
+		 */
+		void signal() {
+			if(!cancelled && (closed || demand.get() > 0) && draining.compareAndSet(0, 1)) {
+				try {
+					delivery.execute(this);
+				} catch(RuntimeException e) {
+					draining.set(0);
+					cancel();
+					subscriber.onError(e);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			for(;;) {
+				long h = head.get();
+				while(!cancelled && demand.get() > 0 && h < tail.get()) {
+					int slot = (int)h & mask;
+					Summary s = ring[slot];
+					ring[slot] = null;
+					head.set(++h);
+					Thread w = blockedProducer;
+					if(w != null) LockSupport.unpark(w);
+					if(demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+					try {
+						subscriber.onNext(s);
+					} catch(Throwable e) {
+						cancel();
+						subscriber.onError(e);
+					}
+				}
+				if(!cancelled && closed && h == tail.get()) {
+					cancel();
+					subscriber.onComplete();
+				}
+				draining.set(0);
+				// Check again in case something arrived after we stopped looking
+				boolean more = !cancelled && ((demand.get() > 0 && head.get() < tail.get()) || (closed && head.get() == tail.get()));
+				if(!more || !draining.compareAndSet(0, 1)) return;
+			}
+		}
+
+		@Override
+		public void request(long n) {
+			if(n <= 0) {
+				cancel();
+				subscriber.onError(new IllegalArgumentException("non-positive request: " + n));
+				return;
+			}
+			long d, nd;
+			do {
+				d = demand.get();
+				nd = d + n;
+				if(nd < 0) nd = Long.MAX_VALUE;
+			} while(!demand.compareAndSet(d, nd));
+			signal();
+		}
+
+		@Override
+		public void cancel() {
+			if(cancelled) return;
+			cancelled = true;
+			channels.remove(this);
+			Thread w = blockedProducer;
+			if(w != null) LockSupport.unpark(w);
+		}
+	}
+
+}
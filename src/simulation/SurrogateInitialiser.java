@@ -0,0 +1,60 @@
+package simulation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Gives each agent the food it would have consumed over a whole generation, drawn from distributions measured from
+ * real sweeps (see FoodIntakeTable).  This generalises BrightnessBodgeInitialiser to the whole genotype and to the
+ * abundance of the agent's species, so a world using it can be evolved with no sweeps at all.
+ *
+ * The food depends on how many agents of each species there are, so is assigned to a whole generation at once;
+ * an agent given food on its own is treated as the only member of its species.
+ *
+ * @author richard
+ *
+ */
+
+public class SurrogateInitialiser extends FoodInitialiser {
+
+	private final FoodIntakeTable table;
+	private final Random rng;
+
+	/**
+	 * @param table measured distributions; must have been measured with the same world parameters as the world
+	 * @param rng noise source for drawing from the distributions
+	 */
+	public SurrogateInitialiser(FoodIntakeTable table, Random rng) {
+		this.table = table;
+		this.rng = rng;
+	}
+
+	@Override
+	public void assignFood(Agent agent) {
+		assignFood(Collections.singletonList(agent), 0, 1);
+	}
+
+	@Override
+	public void assignFood(List<Agent> agents, int from, int to) {
+		Map<Integer, int[]> abundance = new HashMap<Integer, int[]>();
+		for(Agent a : agents.subList(from, to)) {
+			int[] n = abundance.get(a.getSpeciesId());
+			if(n == null) abundance.put(a.getSpeciesId(), n = new int[1]);
+			n[0]++;
+		}
+		try {
+			for(Agent a : agents.subList(from, to)) {
+				long key = table.key(a.getContrast(), a.getBrightness(), a.getMotility(), a.getDirectedness(), abundance.get(a.getSpeciesId())[0]);
+				a.setFoodConsumed(FoodIntakeTable.sample(table.lookup(key), rng));
+			}
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
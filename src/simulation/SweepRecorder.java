@@ -0,0 +1,17 @@
+package simulation;
+
+/**
+ * Something that wants to capture the state of a world after every sweep, e.g., to record a trajectory
+ *
+ * @author richard
+ *
+ */
+
+public interface SweepRecorder {
+	/**
+	 * Called at the end of each sweep, on the thread running the simulation; must not modify the world
+	 *
+	 * @param world world that has just been swept
+	 */
+	void recordSweep(World world);
+}
@@ -1,18 +1,36 @@
 package simulation;
 
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.WeakHashMap;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class World {
 	
+	/**
+	 * Version of the results of the simulation.  Increase it with any change to the code that changes what a run
+	 * gives from a given configuration and seed, so that results cached under the old version (see
+	 * storage.ResultCache) are not used again.
+	 */
+	public final static int RESULTS_VERSION = 1;
+
 	// Threshold of species abundance that must be exceeded for a dominance threshold to be exceeded
 	private final static double DOMINANCE_THRESHOLD = 0.75;
 
+	// Number of children created together, from one generator, when regenerating in parallel
+	private final static int REGENERATION_BLOCK = 4096;
+
 	// By default, use the standard Java random number generator for all random numbers
 	private static Random rng = new Random();
 
@@ -30,6 +48,28 @@ public class World {
 		return rng;
 	}
 
+	// Generator used by this particular world; if null, the shared generator above is used
+	private Random worldRng = null;
+
+	/**
+	 * Give this world its own random number generator, e.g., so that several worlds can be simulated
+	 * independently on different threads
+	 * 
+	 * @param r generator to use in this world, or null to go back to the shared generator
+	 */
+	public void setWorldRNG(Random r) {
+		worldRng = r;
+	}
+
+	/**
+	 * Get the random number generator that this world uses
+	 * 
+	 * @return this world's own generator if it has one, the shared generator otherwise
+	 */
+	public Random getWorldRNG() {
+		return worldRng != null ? worldRng : rng;
+	}
+
 	
 	// Dimensions of this world; agents can occupy the positions x=0..sizex-1, y=0..sizey-1
 	private int sizex=0, sizey=0;
@@ -59,6 +99,56 @@ public class World {
 	// Representative of the dominant species
 	Agent dominator = null;
 
+	// If set, this is told about the state of the world after every sweep
+	private SweepRecorder recorder = null;
+
+	// Listeners told of events, and those also told of the end of every sweep: null if there are none, the listener
+	// if there is one, or a MulticastListener
+	private WorldListener listeners = null, sweepListeners = null;
+
+	// Number of agents of each species present, kept up to date as agents are born and die
+	private final SpeciesCounts abundances = new SpeciesCounts();
+
+	// Whether evolve() may skip the sweeps when only one species is present, and how many times it has
+	private boolean fastForward = false;
+	private int fastForwarded = 0;
+
+	// How sweeps() carries out the sweeps
+	private Engine engine = Engine.SEQUENTIAL;
+
+	// Whether agents choose a random step with one draw from a table (see DrawOrder), read by Agent on every move
+	boolean tableDraws = false;
+
+	// Ancestry of the species present
+	private final LineageTracker lineage = new LineageTracker();
+
+	// Whether to create each new generation on all available processors (see setParallelRegeneration())
+	private boolean parallelRegeneration = false;
+
+	// Curve along which the agents are sorted when a generation is born, if any
+	private AgentOrder agentOrder = AgentOrder.BIRTH;
+
+	// Births per sweep in the overlapping-generations (Moran) mode; zero for non-overlapping generations
+	private double moranRate = 0.0;
+
+	// Nearest light found by findLight()
+	private int lightDx, lightDy;
+
+	// Structure used by sweep() to find the nearest light, if any, and whether it is up to date with the agents
+	private LightIndex lightIndex = null;
+	private boolean lightIndexValid = false;
+
+	// Genotypes of the agents, so that agents with the same traits can share one; held weakly, so that genotypes
+	// nobody has any more are forgotten
+	private final Map<Genotype, WeakReference<Genotype>> genotypes = new WeakHashMap<Genotype, WeakReference<Genotype>>();
+
+	// Field of nearest lights used by the synchronous engine, if chosen
+	private LightField lightField = null;
+
+	// How far away agents can see lights, and how that distance is measured
+	private double visibility = Double.POSITIVE_INFINITY;
+	private Metric metric = Metric.EUCLIDEAN;
+
 
 	/**
 	 * Set the size of the world - any food or agents outside the new bounds are removed
@@ -82,7 +172,9 @@ public class World {
 			Agent a = ags.next();
 			if(a.getX() >= x || a.getY() >= y) ags.remove();
 		}
+		countSpecies();
 		sizex = x; sizey = y; food = newFood;
+		lightIndexValid = false;
 	}
 
 	/**
@@ -174,6 +266,21 @@ public class World {
 	public void setDirectednessWeight(double directednessWeight) {
 		this.directednessWeight = directednessWeight;
 	}
+
+	/**
+	 * Find the genotype with the given traits and the efficiency they have under the current costs, making it if no
+	 * agent in this world has it yet
+	 * 
+	 * @return genotype shared with any other agents that have the same one
+	 */
+	synchronized Genotype genotype(double contrast, double brightness, double motility, double directedness, boolean reversed) {
+		Genotype g = new Genotype(contrast, brightness, motility, directedness, reversed,
+				Genotype.efficiency(this, contrast, brightness, motility, directedness));
+		WeakReference<Genotype> r = genotypes.get(g);
+		Genotype shared = r == null ? null : r.get();
+		if(shared == null) genotypes.put(shared = g, new WeakReference<Genotype>(g));
+		return shared;
+	}
 	
 	/**
 	 * Mutability of various agent characteristics
@@ -214,6 +321,36 @@ public class World {
 	public void setFoodInitialiser(FoodInitialiser fi) {
 		finit = fi;
 	}
+
+	/**
+	 * Capture the state of the world after every sweep
+	 * 
+	 * @param r recorder to notify, or null to stop recording
+	 */
+	public void setRecorder(SweepRecorder r) {
+		recorder = r;
+	}
+
+	/**
+	 * Tell a listener of events in this world from now on
+	 * 
+	 * @param l listener
+	 * @param sweeps whether to call its onSweepEnd() too, which means sweeps must be run one at a time (see Engine)
+	 */
+	public void addListener(WorldListener l, boolean sweeps) {
+		listeners = MulticastListener.add(listeners, l);
+		if(sweeps) sweepListeners = MulticastListener.add(sweepListeners, l);
+	}
+
+	/**
+	 * Stop telling a listener of events
+	 * 
+	 * @param l listener
+	 */
+	public void removeListener(WorldListener l) {
+		listeners = MulticastListener.remove(listeners, l);
+		sweepListeners = MulticastListener.remove(sweepListeners, l);
+	}
 	
 	/**
 	 * Create a random assignment of food on n sites of the lattice
@@ -221,6 +358,7 @@ public class World {
 	 * @param n number of lattice sites to occupy with food
 	 */
 	public void assignFood(int n) {
+		Random rng = getWorldRNG();
 		if(n>sizex*sizey) n = sizex*sizey;
 		sitesWithFood = n;
 		for(int x=0; x<sizex; x++) {
@@ -267,6 +405,7 @@ public class World {
 	 * @param startTogether whether all agents start on the same site
 	 */
 	public void assignAgents(int nagents, double brightness, double contrast, double motility, double directedness) {
+		Random rng = getWorldRNG();
 		// Restore a clean slate
 		agents.clear();
 		generations =  0;
@@ -275,11 +414,16 @@ public class World {
 		for(int i=0; i<nagents; i++) {
 			int x = rng.nextInt(sizex), y = rng.nextInt(sizey);
 			Agent agent = new Agent(this, x, y, contrast, brightness, motility, directedness);
-			finit.assignFood(agent);
 			agent.setSpeciesId(0);
 			agents.add(agent);	
 		}
+		sortAgents();
+		finit.assignFood(agents, 0, agents.size());
 		dominator = agents.get(0);
+		countSpecies();
+		lineage.reset(agents, generations);
+		fastForwarded = 0;
+		lightIndexValid = false;
 		
 	}
 	
@@ -292,52 +436,595 @@ public class World {
 		return agents;
 	}
 
+	// Note that agents have moved, changed their lights or changed species without the light index knowing
+	void agentsChanged() {
+		lightIndexValid = false;
+	}
+
 	/**
 	 * Choose an agent at random, set up its input, get the output and act accordingly. Do this on average once per agent.
 	 * 
 	 * The agent consumes food if the site it occupies before the site contains food
 	 */
 	public void sweep() {
+		Random rng = getWorldRNG();
 		int ags = agents.size();
-		int hsx = sizex/2, hsy = sizey/2;
+		validateLightIndex();
 		for(int i=0; i<ags; i++) {
-			Agent a = agents.get(rng.nextInt(ags));
+			update(rng.nextInt(ags), rng);
+		}
+
+		if(recorder != null) recorder.recordSweep(this);
+		if(sweepListeners != null) sweepListeners.onSweepEnd(this);
+	}
+
+	/**
+	 * Ways for sweep() to find the nearest light visible to an agent.  SCAN, GRID, KINETIC and PACKED give exactly the same
+	 * answers, so do not change the outcome of a run, only its speed.  The HYBRID and EVENTS engines (see Engine)
+	 * always scan.
+	 */
+	public enum LightSearch {
+		/**
+		 * Look at every agent
+		 */
+		SCAN,
+		/**
+		 * Look at the lights in a grid of cells, in rings around the agent; best when there are many lights
+		 */
+		GRID,
+		/**
+		 * Keep each agent's nearest light, and repair it when a light nearby changes; best when there are few lights
+		 */
+		KINETIC,
+		/**
+		 * Look at every light of the species, kept in arrays of positions that are scanned with loops the JIT compiler
+		 * can vectorise; much faster than SCAN, but still in proportion to the number of lights
+		 */
+		PACKED,
+		/**
+		 * For the SYNCHRONOUS engine only, where all agents see the same lights: find the nearest light of each species
+		 * to every site once per sweep by jump flooding (see LightField), after which each agent's search takes
+		 * constant time; best when there are many agents.  Unlike the other searches this is approximate, since jump
+		 * flooding occasionally misses the nearest light by a little, so results can differ from theirs.  Elsewhere
+		 * this is the same as SCAN.
+		 */
+		FIELD
+	}
+
+	public void setLightSearch(LightSearch search) {
+		lightIndex = search == LightSearch.GRID ? new GridLightIndex() : search == LightSearch.KINETIC ? new KineticLightIndex()
+				: search == LightSearch.PACKED ? new PackedLightIndex() : null;
+		lightField = search == LightSearch.FIELD ? new LightField() : null;
+		lightIndexValid = false;
+	}
+
+	public LightSearch getLightSearch() {
+		if(lightField != null) return LightSearch.FIELD;
+		return lightIndex instanceof GridLightIndex ? LightSearch.GRID : lightIndex instanceof KineticLightIndex ? LightSearch.KINETIC
+				: lightIndex instanceof PackedLightIndex ? LightSearch.PACKED : LightSearch.SCAN;
+	}
+
+	private void validateLightIndex() {
+		if(lightIndex != null && !lightIndexValid) {
+			lightIndex.rebuild(this);
+			lightIndexValid = true;
+		}
+	}
+
+	// Update the agent with a given index, using the light index if there is one
+	private void update(int k, Random rng) {
+		Agent a = agents.get(k);
+		if(lightIndex == null) {
+			update(a, agents, rng);
+		} else {
+			lightIndex.find(k);
+			lightIndex.remove(k);
+			a.act(lightIndex.dx, lightIndex.dy, rng);
+			lightIndex.insert(k);
+		}
+	}
+
+	// Show an agent the nearest light among a list of agents that includes all the others of its species, and let it respond
+	private void update(Agent a, List<Agent> others, Random rng) {
+		findLight(a, others);
+		a.act(lightDx, lightDy, rng);
+	}
+
+	/**
+	 * Ways of measuring how far away a light is, for deciding whether it is within sight.  Whatever the metric, the
+	 * light an agent follows is the nearest of those in sight by Euclidean distance.
+	 */
+	public enum Metric {
+		EUCLIDEAN,
+		/**
+		 * The larger of the distances along the two axes, so agents see a square
+		 */
+		CHEBYSHEV,
+		/**
+		 * The sum of the distances along the two axes, so agents see a diamond
+		 */
+		MANHATTAN
+	}
+
+	/**
+	 * Limit how far away agents can see lights.  Lights further away are ignored, as though they were off.
+	 * 
+	 * @param radius greatest distance at which a light can be seen; infinity (the default) for no limit
+	 * @param metric how the distance is measured
+	 */
+	public void setVisibility(double radius, Metric metric) {
+		visibility = radius;
+		this.metric = metric;
+		lightIndexValid = false;
+	}
+
+	public double getVisibility() {
+		return visibility;
+	}
+
+	public Metric getVisibilityMetric() {
+		return metric;
+	}
+
+	/**
+	 * Decide whether a light is within sight
+	 * 
+	 * @param dx displacement of the light along x, after applying the minimum image convention
+	 * @param dy displacement of the light along y, likewise
+	 * @return whether the light is no further away than the visibility radius
+	 */
+	boolean canSee(int dx, int dy) {
+		if(visibility == Double.POSITIVE_INFINITY) return true;
+		int ax = Math.abs(dx), ay = Math.abs(dy);
+		switch(metric) {
+		case CHEBYSHEV:
+			return Math.max(ax, ay) <= visibility;
+		case MANHATTAN:
+			return ax + ay <= visibility;
+		default:
+			return ax * ax + ay * ay <= visibility * visibility;
+		}
+	}
+
+	// Set lightDx, lightDy to the position of the nearest light that an agent can see, relative to the agent
+	private void findLight(Agent a, List<Agent> others) {
+		int hsx = sizex/2, hsy = sizey/2;
+
+		// Find position of nearest light source (if we don't find one, dx and dy will end up as zero, which will be treated as "no light source" in the input)
+		int dx = 0, dy = 0;
 
-			// Find position of nearest light source (if we don't find one, dx and dy will end up as zero, which will be treated as "no light source" in the input)
-			int dx = 0, dy = 0;
+		for(Agent b : others) {
+			// Skip agents whose lights are off
+			if(!b.isLightOn()) continue;
+			// Do not monitor our own light state, or those of different species
+			if(b == a || a.getSpeciesId() != b.getSpeciesId()) continue;
 
-			for(Agent b : agents) {
-				// Skip agents whose lights are off
-				if(!b.isLightOn()) continue;
-				// Do not monitor our own light state, or those of different species
-				if(b == a || a.getSpeciesId() != b.getSpeciesId()) continue;
+			// Use Euclidean distance metric combined with the minimum image convention
+			// (i.e., find the shortest distance from agent a to any of the periodic images of b)
+			int abdx = b.getX() - a.getX();
+			int abdy = b.getY() - a.getY();
 
-				// Use Euclidean distance metric combined with the minimum image convention
-				// (i.e., find the shortest distance from agent a to any of the periodic images of b)
-				int abdx = b.getX() - a.getX();
-				int abdy = b.getY() - a.getY();
+			// Ignore lights on the same site
+			if(abdx == 0 && abdy == 0) continue;
 
-				// Ignore lights on the same site
-				if(abdx == 0 && abdy == 0) continue;
+			// Apply minimum image convention
+			if(abdx > hsx) abdx -= sizex;
+			else if(abdx < - hsx) abdx += sizex;
 
-				// Apply minimum image convention
-				if(abdx > hsx) abdx -= sizex;
-				else if(abdx < - hsx) abdx += sizex;
+			if(abdy > hsy) abdy -= sizey;
+			else if(abdy < - hsy) abdy += sizey;
 
-				if(abdy > hsy) abdy -= sizey;
-				else if(abdy < - hsy) abdy += sizey;
+			// Ignore lights out of sight
+			if(!canSee(abdx, abdy)) continue;
+
+			if((dx ==0 && dy == 0) || abdx * abdx + abdy * abdy < dx*dx + dy*dy) {
+				dx = abdx;
+				dy = abdy;
+			}
+		}
+
+		lightDx = dx;
+		lightDy = dy;
+	}
+
+	/**
+	 * Ways of carrying out the sweeps run by sweeps() and evolve().  HYBRID and EVENTS give the same results
+	 * statistically as running sweep() repeatedly, but not the same sequence of random numbers; with these, sweep() is
+	 * used while a recorder or a listener for sweeps is set, since those need the state after every sweep.  SYNCHRONOUS is a different model.
+	 */
+	public enum Engine {
+		/**
+		 * Call sweep() the requested number of times
+		 */
+		SEQUENTIAL,
+		/**
+		 * Agents in a species that never shows a light (all brightnesses zero) or never follows one (all
+		 * directednesses zero) do a random walk that nothing else depends on, so their updates are counted while the
+		 * sweeps are run and only carried out at the end, without looking for lights.  The other agents are updated
+		 * one at a time as usual.
+		 */
+		HYBRID,
+		/**
+		 * Each agent is updated at the times of its own Poisson process of rate one per sweep, which differs from
+		 * sweep() only in that an agent gets a Poisson rather than binomial number of updates per sweep.  Updates that
+		 * change nothing but the food consumed can only happen to agents on food, so elsewhere only moves and changes
+		 * of light are generated, at the rates implied by the agent's traits.  Work is then in proportion to what
+		 * actually happens, which makes this much faster for populations that rarely move or signal.
+		 */
+		EVENTS,
+		/**
+		 * Every agent is updated exactly once per sweep, all at the same time: each looks for the nearest light as
+		 * the lights were at the start of the sweep, and then all respond, in the order of the list of agents.  This
+		 * is a different model from the others, not a faster way of running the same one.
+		 */
+		SYNCHRONOUS
+	}
+
+	public void setEngine(Engine e) {
+		engine = e;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Ways for an agent to draw a random step.  Both choose each of the eight neighbouring sites with equal
+	 * probability, so give the same results statistically, but not the same sequence of random numbers.
+	 */
+	public enum DrawOrder {
+		/**
+		 * Draw -1, 0 or 1 for each axis until the step is not zero, which takes 9/8 of a pair of draws
+		 * on average, or 2.25 single draws
+		 */
+		LEGACY,
+		/**
+		 * Draw one of the eight steps from a table, which takes a single draw
+		 */
+		TABLE
+	}
+
+	public void setDrawOrder(DrawOrder order) {
+		tableDraws = order == DrawOrder.TABLE;
+	}
 
-				if((dx ==0 && dy == 0) || abdx * abdx + abdy * abdy < dx*dx + dy*dy) {
-					dx = abdx;
-					dy = abdy;
+	public DrawOrder getDrawOrder() {
+		return tableDraws ? DrawOrder.TABLE : DrawOrder.LEGACY;
+	}
+
+	/**
+	 * Orders in which to keep the list of agents.  Sorting the agents along a space-filling curve puts agents that are
+	 * near each other in the world near each other in memory, which makes finding lights cheaper in large worlds.
+	 * The agents are sorted when a generation is born, so indices into getAgents() stay the same for the whole of a
+	 * generation (its sweeps only move agents, and do not reorder them).  Since agents are picked for updates by their
+	 * index, sorting gives the same results statistically, but not the same sequence of events.
+	 */
+	public enum AgentOrder {
+		/**
+		 * The order in which the agents were born
+		 */
+		BIRTH,
+		/**
+		 * Along the Morton (Z-order) curve, which interleaves the bits of the coordinates
+		 */
+		MORTON,
+		/**
+		 * Along the Hilbert curve, which keeps neighbours a little closer than the Morton curve, at a little more cost
+		 */
+		HILBERT
+	}
+
+	public void setAgentOrder(AgentOrder order) {
+		agentOrder = order;
+	}
+
+	public AgentOrder getAgentOrder() {
+		return agentOrder;
+	}
+
+	// Sort the newborn agents as chosen by setAgentOrder(), and copy them in their new order so that they are laid out
+	// in that order in memory too (for now, at least: the garbage collector is free to move them)
+	private void sortAgents() {
+		if(agentOrder == AgentOrder.BIRTH) return;
+		SpaceFillingCurve.sort(agents, agentOrder, SpaceFillingCurve.bits(sizex, sizey));
+		for(int i=0; i<agents.size(); i++) {
+			Agent a = agents.get(i);
+			agents.set(i, new Agent(this, a.getX(), a.getY(), a));
+		}
+	}
+
+	/**
+	 * Run a number of sweeps with the engine chosen by setEngine()
+	 * 
+	 * @param n number of sweeps
+	 */
+	public void sweeps(int n) {
+		if(engine == Engine.SYNCHRONOUS) {
+			synchronousSweeps(n);
+		} else if(engine == Engine.SEQUENTIAL || observesSweeps()) {
+			for(int t=0; t<n; t++) {
+				sweep();
+			}
+		} else if(engine == Engine.HYBRID) {
+			hybridSweeps(n);
+		} else {
+			eventSweeps(n);
+		}
+	}
+
+	// Whether a recorder or listener is told of every sweep, so that the sweeps must be run one at a time by sweep()
+	boolean observesSweeps() {
+		return recorder != null || sweepListeners != null;
+	}
+
+	private void synchronousSweeps(int n) {
+		Random rng = getWorldRNG();
+		int ags = agents.size();
+		int[] dx = new int[ags], dy = new int[ags];
+		for(int t=0; t<n; t++) {
+			// Everyone looks before anyone moves
+			if(lightField != null) {
+				lightField.compute(this);
+				for(int k=0; k<ags; k++) {
+					lightField.find(k);
+					dx[k] = lightField.dx;
+					dy[k] = lightField.dy;
+				}
+			} else if(lightIndex != null) {
+				lightIndex.rebuild(this);
+				for(int k=0; k<ags; k++) {
+					lightIndex.find(k);
+					dx[k] = lightIndex.dx;
+					dy[k] = lightIndex.dy;
 				}
+			} else {
+				for(int k=0; k<ags; k++) {
+					findLight(agents.get(k), agents);
+					dx[k] = lightDx;
+					dy[k] = lightDy;
+				}
+			}
+			for(int k=0; k<ags; k++) {
+				agents.get(k).act(dx[k], dy[k], rng);
+			}
+			if(recorder != null) recorder.recordSweep(this);
+			if(sweepListeners != null) sweepListeners.onSweepEnd(this);
+		}
+		// Agents have moved without the light index knowing
+		lightIndexValid = false;
+	}
+
+	private void hybridSweeps(int n) {
+		// Find the species whose members can ignore each other's lights
+		Map<Integer, boolean[]> dark = new HashMap<Integer, boolean[]>();
+		for(Agent a : agents) {
+			boolean[] d = dark.get(a.getSpeciesId());
+			if(d == null) dark.put(a.getSpeciesId(), d = new boolean[]{ true, true });
+			d[0] &= a.getBrightness() == 0.0;
+			d[1] &= a.getDirectedness() == 0.0;
+		}
+		int ags = agents.size();
+		boolean[] deferred = new boolean[ags];
+		List<Agent> signalling = new ArrayList<Agent>();
+		for(int i=0; i<ags; i++) {
+			boolean[] d = dark.get(agents.get(i).getSpeciesId());
+			deferred[i] = d[0] || d[1];
+			if(!deferred[i]) signalling.add(agents.get(i));
+		}
+
+		// Make the same choices of agent as sweep() would, but only update the signalling ones straight away
+		Random rng = getWorldRNG();
+		int[] pending = new int[ags];
+		for(int t=0; t<n; t++) {
+			for(int i=0; i<ags; i++) {
+				int k = rng.nextInt(ags);
+				if(deferred[k]) pending[k]++;
+				else update(agents.get(k), signalling, rng);
+			}
+		}
+		for(int i=0; i<ags; i++) {
+			if(pending[i] > 0) agents.get(i).walk(pending[i], rng);
+		}
+		lightIndexValid = false;
+	}
+
+	// Rate, per sweep, of the events that can happen to an agent
+	private static double eventRate(Agent a) {
+		// On food, every update counts, since it consumes food
+		if(a.isOnFood()) return 1.0;
+		// Elsewhere, only moves and changes of light
+		double m = a.getMotility(), p = a.lightProbability(false);
+		return m + (1.0 - m) * (a.isLightOn() ? 1.0 - p : p);
+	}
+
+	private void eventSweeps(int n) {
+		Random rng = getWorldRNG();
+		int ags = agents.size();
+		FenwickTree rates = new FenwickTree(ags);
+		for(int i=0; i<ags; i++) {
+			rates.set(i, eventRate(agents.get(i)));
+		}
+
+		double t = 0.0;
+		while(true) {
+			double total = rates.total();
+			if(total <= 0.0) break;
+			t -= Math.log(1.0 - rng.nextDouble()) / total;
+			if(t >= n) break;
+
+			int i = rates.find(rng.nextDouble() * total);
+			Agent a = agents.get(i);
+			if(a.isOnFood()) {
+				// An ordinary update
+				update(a, agents, rng);
+			} else if(rng.nextDouble() * rates.get(i) < a.getMotility()) {
+				// An update in which the agent moves
+				findLight(a, agents);
+				a.move(lightDx, lightDy, rng);
+				a.settle(rng);
+			} else {
+				// An update in which the agent stays put and its light changes
+				a.setLightOn(!a.isLightOn());
 			}
+			rates.set(i, eventRate(a));
+		}
+		lightIndexValid = false;
+	}
+
+	/**
+	 * Allow evolve() to skip the sweeps of any generation in which all agents belong to the same species.
+	 * The sweeps of such a generation only decide which of a set of identical agents have offspring, so skipping
+	 * them does not change the evolutionary dynamics; mutants still arise at regeneration as usual.
+	 * 
+	 * @param ff true to enable fast-forwarding
+	 */
+	public void setFastForward(boolean ff) {
+		fastForward = ff;
+	}
+
+	public boolean isFastForward() {
+		return fastForward;
+	}
+
+	/**
+	 * Create each new generation on all available processors, which pays off for populations in the hundreds of
+	 * thousands.  Children are created in blocks of a fixed size, each with its own generator seeded from the world's,
+	 * so a run is reproducible from its seed whatever the number of threads, but does not follow the same course as
+	 * with regeneration on one thread.  The food initialiser is still called once, on one thread.
+	 * 
+	 * @param parallel true to regenerate in parallel
+	 */
+	public void setParallelRegeneration(boolean parallel) {
+		parallelRegeneration = parallel;
+	}
+
+	public boolean isParallelRegeneration() {
+		return parallelRegeneration;
+	}
+
+	/**
+	 * Number of generations whose sweeps were skipped by evolve() since the agents were last assigned
+	 * 
+	 * @return count of fast-forwarded generations
+	 */
+	public int getFastForwardedGenerations() {
+		return fastForwarded;
+	}
+
+	/**
+	 * Find out if all agents belong to the same species (tracked as agents are regenerated, so this is cheap)
+	 * 
+	 * @return true if there is exactly one species
+	 */
+	public boolean isMonomorphic() {
+		return abundances.getSpecies() == 1;
+	}
 
-			a.respond(dx, dy, rng);
+	/**
+	 * Use overlapping generations: instead of the whole population being replaced at the end of each generation, an
+	 * agent reproduces at random times, at the given rate, with probability proportional to its current fitness, and
+	 * its offspring replaces an agent chosen uniformly at random (a Moran process).  A rate of (number of agents) /
+	 * (sweeps per generation) replaces as many agents per generation, on average, as the non-overlapping mode does.
+	 * 
+	 * @param birthsPerSweep average number of births per sweep, or 0 for non-overlapping generations
+	 */
+	public void setMoranRate(double birthsPerSweep) {
+		moranRate = birthsPerSweep;
+	}
+
+	public double getMoranRate() {
+		return moranRate;
+	}
+
+	/**
+	 * Run one generation: shuffle the food, run the specified number of sweeps and regenerate.  If fast-forwarding
+	 * is enabled and the population is monomorphic, the sweeps are skipped and parents are chosen uniformly.
+	 * 
+	 * With overlapping generations (see setMoranRate()) there is no regeneration: agents are born and replaced
+	 * during the sweeps, which are always run one agent at a time as in sweep(), and "generation" just counts the
+	 * number of times this has been called.
+	 * 
+	 * @param sweeps number of sweeps per generation
+	 * @param agentMutate probability of a mutation in any given birth event
+	 */
+	public void evolve(int sweeps, double agentMutate) {
+		shuffleFood();
+		if(moranRate > 0.0) {
+			moranSweeps(sweeps, agentMutate);
+			++generations;
+			if(listeners != null) listeners.onGeneration(this, generations);
+		} else {
+			boolean skip = skipsSweeps();
+			if(!skip) sweeps(sweeps);
+			endGeneration(agentMutate, skip);
 		}
+	}
+
+	// Whether the sweeps of a generation can be skipped, since fast-forwarding is on and only one species is present
+	boolean skipsSweeps() {
+		return fastForward && isMonomorphic();
+	}
 
+	// Finish a generation (of non-overlapping generations) once its sweeps are done or skipped
+	void endGeneration(double agentMutate, boolean skipped) {
+		if(skipped) fastForwarded++;
+		regenerate(agentMutate, skipped);
 	}
 
+	// Run sweeps with births and deaths in between the updates, keeping each agent's fitness in a tree so that parents
+	// can be chosen in logarithmic time
+	private void moranSweeps(int n, double agentMutate) {
+		Random rng = getWorldRNG();
+		int ags = agents.size();
+		FenwickTree fitness = new FenwickTree(ags);
+		for(int i=0; i<ags; i++) {
+			fitness.set(i, agents.get(i).getFitness());
+		}
+		int threshold = (int)(DOMINANCE_THRESHOLD * ags);
+		validateLightIndex();
+
+		// Births are a Poisson process; time is measured in updates
+		double updatesPerBirth = ags / moranRate;
+		double nextBirth = -Math.log(1.0 - rng.nextDouble()) * updatesPerBirth;
+		for(int t=0; t<n; t++) {
+			for(int i=0; i<ags; i++) {
+				int k = rng.nextInt(ags);
+				Agent a = agents.get(k);
+				int food = a.getFoodConsumed();
+				update(k, rng);
+				if(a.getFoodConsumed() != food) fitness.set(k, a.getFitness());
+
+				while(nextBirth < (double)t * ags + i + 1) {
+					// Choose a parent in proportion to fitness, or uniformly if nobody has eaten, and somebody to replace
+					double total = fitness.total();
+					Agent parent = agents.get(total > 0.0 ? fitness.find(total * rng.nextDouble()) : rng.nextInt(ags));
+					int victim = rng.nextInt(ags);
+					Agent child = new Agent(this, rng.nextInt(sizex), rng.nextInt(sizey), parent);
+					if(rng.nextDouble() < agentMutate) {
+						child.mutate(rng);
+						child.setSpeciesId(++maxSpeciesID);
+						founded(child, parent.getSpeciesId());
+					}
+					finit.assignFood(child);
+
+					// Keep track of species abundances and the dominant species
+					abundances.remove(agents.get(victim).getSpeciesId());
+					int put = abundances.add(child.getSpeciesId());
+					if(put >= threshold && child.getSpeciesId() != dominator.getSpeciesId()) setDominator(child);
+
+					if(lightIndex != null) lightIndex.remove(victim);
+					agents.set(victim, child);
+					if(lightIndex != null) lightIndex.insert(victim);
+					fitness.set(victim, child.getFitness());
+					nextBirth -= Math.log(1.0 - rng.nextDouble()) * updatesPerBirth;
+				}
+			}
+			if(recorder != null) recorder.recordSweep(this);
+			if(sweepListeners != null) sweepListeners.onSweepEnd(this);
+		}
+		abundances.resum();
+		census(abundances::get);
+	}
 
 	/**
 	 * Create a new generation of agents (same population size as the previous one)
@@ -346,25 +1033,36 @@ public class World {
 	 * @param agentMutate probability of a mutation in any given birth event
 	 */
 	public void regenerateAgents(double agentMutate) {
+		regenerate(agentMutate, false);
+	}
+
+	/*
+	 * Regenerate, choosing parents in proportion to fitness, or uniformly if uniformParents is set
+	 */
+	private void regenerate(double agentMutate, boolean uniformParents) {
+		if(parallelRegeneration) {
+			parallelRegenerate(agentMutate, uniformParents);
+			return;
+		}
+		Random rng = getWorldRNG();
 		// Assign a score to each existing agent
 		int popSize = agents.size();
 		double score[] = new double[popSize];
 
-		score[0] = agents.get(0).getFitness();
-		
-		for(int i=1; i<popSize; i++) {
-			score[i] = score[i-1] + agents.get(i).getFitness();
+		if(!uniformParents) {
+			score[0] = agents.get(0).getFitness();
+			
+			for(int i=1; i<popSize; i++) {
+				score[i] = score[i-1] + agents.get(i).getFitness();
+			}
 		}
 
 		List<Agent> newAgents = new ArrayList<Agent>();
-		Map<Integer,Integer> sad = new HashMap<Integer, Integer>();
 		Agent domagent = null;
 		int threshold = (int)(DOMINANCE_THRESHOLD * popSize);
 		
-		// Zero all the entries of the map
-		for(Integer key : sad.keySet()) {
-			sad.put(key, 0);
-		}
+		// Start counting the species afresh
+		abundances.clear();
 
 		// Generate a random sample of the same size as previously
 		for(int i=0; i<popSize; i++) {
@@ -373,9 +1071,9 @@ public class World {
 			int x = rng.nextInt(sizex);
 			int y = rng.nextInt(sizey);
 			
-			// Choose a child; randomly if no food was consumed, weighted according to consumption otherwise
+			// Choose a child; randomly if no food was consumed (or parents are to be chosen uniformly), weighted according to consumption otherwise
 			Agent child = null;
-			if(score[popSize-1] == 0.0) child = new Agent(this, x, y, agents.get(rng.nextInt(popSize)));
+			if(uniformParents || score[popSize-1] == 0.0) child = new Agent(this, x, y, agents.get(rng.nextInt(popSize)));
 			else {			
 				double choose = score[popSize-1] * rng.nextDouble();
 				for(int j=0; j<popSize; j++) {
@@ -390,29 +1088,185 @@ public class World {
 			// Change one of the agent's behaviour parameters with the specified probability, and make this a member of a new species
 			// Keep track of species abundances and the dominant species as we do this
 			if(rng.nextDouble() < agentMutate) {
+				int parentId = child.getSpeciesId();
 				child.mutate(rng);
 				child.setSpeciesId(++maxSpeciesID);
+				founded(child, parentId);
 			} 
 
-			finit.assignFood(child);
 			newAgents.add(child);
 
 			// Keep track of species abundances
-			Integer sid = child.getSpeciesId();
-			Integer put = sad.containsKey(sid) ? sad.get(sid)+1 : 1;
-			sad.put(sid, put);
+			int put = abundances.add(child.getSpeciesId());
 			if(put >= threshold) domagent = child;		
 		}
 				
-		// If a new species has exceeded the threshold, we update its representative
+		census(abundances::get);
+		replaceAgents(newAgents, domagent);
+	}
+
+	// Make a new generation the current one, given the last-born member of a species that reached the dominance
+	// threshold, if any; the species must have been counted already
+	private void replaceAgents(List<Agent> newAgents, Agent domagent) {
 		// If a new species has exceeded the threshold, we update its representative
 		if(domagent != null && domagent.getSpeciesId() != dominator.getSpeciesId()) {
-			dominator = domagent;
+			setDominator(domagent);
 		}
 
 		agents = newAgents;
+		sortAgents();
+		finit.assignFood(agents, 0, agents.size());
+		lightIndexValid = false;
 		++generations;
-		
+		if(listeners != null) listeners.onGeneration(this, generations);
+	}
+
+	// Count the species of the current agents afresh
+	private void countSpecies() {
+		abundances.clear();
+		for(Agent a : agents) {
+			abundances.add(a.getSpeciesId());
+		}
+	}
+
+	// Record the founding of a species by a mutant just born, and tell the listeners
+	private void founded(Agent founder, int parentId) {
+		lineage.found(founder.getSpeciesId(), parentId, generations + 1, founder);
+		if(listeners != null) listeners.onSpeciesCreated(this, founder.getSpeciesId(), parentId);
+	}
+
+	// Bring the lineage up to date with the abundances of the species, and tell the listeners of any that have died out
+	private void census(IntUnaryOperator abundances) {
+		WorldListener l = listeners;
+		lineage.census(abundances, l == null ? null : sid -> l.onSpeciesExtinct(this, sid));
+	}
+
+	// Make an agent the representative of a new dominant species, and tell the listeners
+	private void setDominator(Agent a) {
+		int previous = dominator.getSpeciesId();
+		dominator = a;
+		if(listeners != null) listeners.onDominanceChange(this, a.getSpeciesId(), previous);
+	}
+
+	/*
+	 * Regenerate as regenerate() does, but creating the children in blocks on all available processors.  Each block
+	 * has its own generator, seeded from the world's, and blocks are of a fixed size, so the results depend only on
+	 * the world's generator and not on the number of threads; they are not the same as regenerate()'s, though.
+	 */
+	private void parallelRegenerate(double agentMutate, boolean uniformParents) {
+		final List<Agent> parents = agents;
+		final int popSize = parents.size(), blocks = (popSize + REGENERATION_BLOCK - 1) / REGENERATION_BLOCK;
+
+		// Cumulative scores: the running sum within each block, then the totals of the blocks before it added on
+		final double[] score = new double[popSize];
+		if(!uniformParents) {
+			IntStream.range(0, blocks).parallel().forEach(b -> {
+				double sum = 0.0;
+				for(int i=b*REGENERATION_BLOCK, to=Math.min(popSize, i+REGENERATION_BLOCK); i<to; i++) {
+					score[i] = sum += parents.get(i).getFitness();
+				}
+			});
+			final double[] before = new double[blocks];
+			for(int b=1; b<blocks; b++) {
+				before[b] = before[b-1] + score[b*REGENERATION_BLOCK - 1];
+			}
+			IntStream.range(1, blocks).parallel().forEach(b -> {
+				for(int i=b*REGENERATION_BLOCK, to=Math.min(popSize, i+REGENERATION_BLOCK); i<to; i++) {
+					score[i] += before[b];
+				}
+			});
+		}
+		final double total = uniformParents ? 0.0 : score[popSize-1];
+
+		// One generator per block, split off in order from one seeded by the world's generator
+		SplittableRandom seeds = new SplittableRandom(getWorldRNG().nextLong());
+		final Random[] rngs = new Random[blocks];
+		for(int b=0; b<blocks; b++) {
+			rngs[b] = new Random(seeds.nextLong());
+		}
+
+		// Create the children, noting which have mutated and so are of new species
+		final Agent[] children = new Agent[popSize];
+		final boolean[] mutated = new boolean[popSize];
+		final int[] mutations = new int[blocks];
+		IntStream.range(0, blocks).parallel().forEach(b -> {
+			Random rng = rngs[b];
+			for(int i=b*REGENERATION_BLOCK, to=Math.min(popSize, i+REGENERATION_BLOCK); i<to; i++) {
+				int x = rng.nextInt(sizex);
+				int y = rng.nextInt(sizey);
+				Agent parent;
+				if(uniformParents || total == 0.0) {
+					parent = parents.get(rng.nextInt(popSize));
+				} else {
+					// The first agent whose cumulative score exceeds the draw
+					double choose = total * rng.nextDouble();
+					int lo = 0, hi = popSize - 1;
+					while(lo < hi) {
+						int mid = (lo + hi) >>> 1;
+						if(choose < score[mid]) hi = mid;
+						else lo = mid + 1;
+					}
+					parent = parents.get(lo);
+				}
+				children[i] = new Agent(this, x, y, parent);
+				if(rng.nextDouble() < agentMutate) {
+					children[i].mutate(rng);
+					mutated[i] = true;
+					mutations[b]++;
+				}
+			}
+		});
+
+		// Number the new species in order of birth, and count the members of each species, and find the last-born of
+		// each, in each block; then merge the counts
+		final int[] firstId = new int[blocks], parentId = new int[popSize];
+		for(int b=0; b<blocks; b++) {
+			firstId[b] = (b == 0 ? maxSpeciesID : firstId[b-1] + mutations[b-1]) + 1;
+		}
+		maxSpeciesID = firstId[blocks-1] + mutations[blocks-1] - 1;
+		List<Map<Integer,int[]>> counts = IntStream.range(0, blocks).parallel().mapToObj(b -> {
+			Map<Integer,int[]> sad = new HashMap<Integer,int[]>();
+			int id = firstId[b];
+			for(int i=b*REGENERATION_BLOCK, to=Math.min(popSize, i+REGENERATION_BLOCK); i<to; i++) {
+				if(mutated[i]) {
+					parentId[i] = children[i].getSpeciesId();
+					children[i].setSpeciesId(id++);
+				}
+				int[] n = sad.get(children[i].getSpeciesId());
+				if(n == null) sad.put(children[i].getSpeciesId(), n = new int[2]);
+				n[0]++;
+				n[1] = i;
+			}
+			return sad;
+		}).collect(Collectors.toList());
+		Map<Integer,int[]> sad = new HashMap<Integer,int[]>();
+		for(Map<Integer,int[]> block : counts) {
+			for(Map.Entry<Integer,int[]> e : block.entrySet()) {
+				int[] n = sad.get(e.getKey());
+				if(n == null) sad.put(e.getKey(), e.getValue());
+				else {
+					n[0] += e.getValue()[0];
+					n[1] = e.getValue()[1];
+				}
+			}
+		}
+
+		for(int i=0; i<popSize; i++) {
+			if(mutated[i]) founded(children[i], parentId[i]);
+		}
+		abundances.clear();
+		for(Map.Entry<Integer,int[]> e : sad.entrySet()) {
+			abundances.add(e.getKey(), e.getValue()[0]);
+		}
+		census(abundances::get);
+
+		// As in regenerate(), the representative of the dominant species is the last child born once the threshold had
+		// been reached: that is, the last-born of the species that reached it
+		int threshold = (int)(DOMINANCE_THRESHOLD * popSize), last = -1;
+		for(int[] n : sad.values()) {
+			if(n[0] >= threshold) last = Math.max(last, n[1]);
+		}
+		replaceAgents(new ArrayList<Agent>(Arrays.asList(children)), last >= 0 ? children[last] : null);
 	}
 	
 
@@ -432,6 +1286,12 @@ public class World {
 	public static class Summary implements Cloneable {
 		public double meanContrast, meanBrightness, meanMotility, meanDirectedness;
 		public double domContrast, domBrightness, domMotility, domDirectedness;
+		public int generation, domSpeciesId;
+		// Number of species present, their Shannon and Gini-Simpson diversities, and the number of agents of each,
+		// largest first
+		public int species;
+		public double shannon, simpson;
+		public int[] abundances;
 		
 		@Override
 		public Object clone() {
@@ -466,10 +1326,162 @@ public class World {
 		sum.domBrightness = dominator.getBrightness();
 		sum.domMotility = dominator.getMotility();
 		sum.domDirectedness = dominator.getDirectedness();
+		sum.domSpeciesId = dominator.getSpeciesId();
+		sum.generation = generations;
+
+		sum.species = abundances.getSpecies();
+		sum.shannon = abundances.getShannon();
+		sum.simpson = abundances.getSimpson();
+		sum.abundances = abundances.getAbundances();
 
 		return sum;
 	}
 	
+	/**
+	 * Take a copy of the complete state of the world, e.g., to save it or to restart from this point later
+	 * 
+	 * @return a copy of the state, independent of this world
+	 */
+	public WorldState captureState() {
+		WorldState s = new WorldState();
+		s.sizex = sizex;
+		s.sizey = sizey;
+		s.generations = generations;
+		s.maxSpeciesID = maxSpeciesID;
+		s.foodSites = new int[sitesWithFood];
+		int k = 0;
+		for(int x=0; x<sizex; x++) {
+			for(int y=0; y<sizey; y++) {
+				if(food[x][y] && k < s.foodSites.length) s.foodSites[k++] = x*sizey + y;
+			}
+		}
+		if(k < s.foodSites.length) s.foodSites = Arrays.copyOf(s.foodSites, k);
+
+		// Store each distinct genotype once
+		Map<List<Double>,Integer> genotypes = new HashMap<List<Double>,Integer>();
+		List<Agent> representatives = new ArrayList<Agent>();
+		int n = agents.size();
+		s.genotype = new int[n];
+		s.posx = new int[n];
+		s.posy = new int[n];
+		s.species = new int[n];
+		s.food = new int[n];
+		s.light = new boolean[n];
+		for(int i=0; i<=n; i++) {
+			Agent a = i < n ? agents.get(i) : dominator;
+			if(a == null) break;
+			List<Double> key = Arrays.asList(a.getContrast(), a.getBrightness(), a.getMotility(), a.getDirectedness());
+			Integer g = genotypes.get(key);
+			if(g == null) {
+				g = representatives.size();
+				genotypes.put(key, g);
+				representatives.add(a);
+			}
+			if(i == n) {
+				s.domGenotype = g;
+				s.domSpecies = a.getSpeciesId();
+			} else {
+				s.genotype[i] = g;
+				s.posx[i] = a.getX();
+				s.posy[i] = a.getY();
+				s.species[i] = a.getSpeciesId();
+				s.food[i] = a.getFoodConsumed();
+				s.light[i] = a.isLightOn();
+			}
+		}
+		int ng = representatives.size();
+		s.contrast = new double[ng];
+		s.brightness = new double[ng];
+		s.motility = new double[ng];
+		s.directedness = new double[ng];
+		for(int g=0; g<ng; g++) {
+			Agent a = representatives.get(g);
+			s.contrast[g] = a.getContrast();
+			s.brightness[g] = a.getBrightness();
+			s.motility[g] = a.getMotility();
+			s.directedness[g] = a.getDirectedness();
+		}
+		return s;
+	}
+
+	/**
+	 * Put the world back into a state obtained from captureState(), replacing its size, food and agents.
+	 * The costs and mutabilities are left as they are; set these first so that agents' efficiencies are right.
+	 * 
+	 * @param s state to restore
+	 */
+	public void restoreState(WorldState s) {
+		sizex = s.sizex;
+		sizey = s.sizey;
+		lightIndexValid = false;
+		food = new boolean[sizex][sizey];
+		for(int f : s.foodSites) food[f / sizey][f % sizey] = true;
+		sitesWithFood = s.foodSites.length;
+		generations = s.generations;
+		maxSpeciesID = s.maxSpeciesID;
+
+		int n = s.posx.length;
+		List<Agent> restored = new ArrayList<Agent>(n);
+		for(int i=0; i<n; i++) {
+			int g = s.genotype[i];
+			Agent a = new Agent(this, s.posx[i], s.posy[i], s.contrast[g], s.brightness[g], s.motility[g], s.directedness[g]);
+			a.setSpeciesId(s.species[i]);
+			a.setFoodConsumed(s.food[i]);
+			a.setLightOn(s.light[i]);
+			restored.add(a);
+		}
+		agents = restored;
+		countSpecies();
+		lineage.reset(agents, generations);
+
+		int g = s.domGenotype;
+		dominator = new Agent(this, 0, 0, s.contrast[g], s.brightness[g], s.motility[g], s.directedness[g]);
+		dominator.setSpeciesId(s.domSpecies);
+	}
+
+	/**
+	 * Make this world a copy of the state of another, as restoreState() would with a state captured from it, but
+	 * without going through a WorldState: the agents are copied directly, and each distinct genotype is looked up
+	 * once.  As with restoreState(), the costs, mutabilities and everything else that is not state are left as they
+	 * are, and efficiencies are worked out afresh under this world's costs.  The other world must not be changed
+	 * while this goes on, but may be in use by another thread before and after.
+	 *
+	 * @param source world to copy
+	 */
+	public void copyFrom(World source) {
+		sizex = source.sizex;
+		sizey = source.sizey;
+		lightIndexValid = false;
+		food = new boolean[sizex][];
+		for(int x=0; x<sizex; x++) food[x] = source.food[x].clone();
+		sitesWithFood = source.sitesWithFood;
+		generations = source.generations;
+		maxSpeciesID = source.maxSpeciesID;
+
+		// An agent of this world with each of the source's genotypes, whose genotype the others can share
+		Map<Genotype,Agent> representatives = new IdentityHashMap<Genotype,Agent>();
+		int n = source.agents.size();
+		List<Agent> copied = new ArrayList<Agent>(n);
+		for(int i=0; i<=n; i++) {
+			Agent a = i < n ? source.agents.get(i) : source.dominator;
+			if(a == null) break;
+			Agent r = representatives.get(a.getGenotype());
+			if(r == null) {
+				r = new Agent(this, 0, 0, a.getContrast(), a.getBrightness(), a.getMotility(), a.getDirectedness());
+				representatives.put(a.getGenotype(), r);
+			}
+			Agent b = new Agent(this, a.getX(), a.getY(), r);
+			b.setSpeciesId(a.getSpeciesId());
+			b.setFoodConsumed(a.getFoodConsumed());
+			b.setLightOn(a.isLightOn());
+			if(i < n) copied.add(b);
+			else dominator = b;
+		}
+		agents = copied;
+		countSpecies();
+		lineage.reset(agents, generations);
+	}
+
 	/**
 	 * Find the species that dominates the system
 	 * 
@@ -479,5 +1491,14 @@ public class World {
 		return dominator;
 	}
 
+	/**
+	 * Obtain the phylogeny of the species present, which is kept up to date as species arise and die out
+	 * 
+	 * @return lineage tracker, which may be queried from any thread
+	 */
+	public LineageTracker getLineage() {
+		return lineage;
+	}
+
 	
 }
@@ -0,0 +1,63 @@
+package simulation;
+
+/**
+ * Something that wants to be told of events in a world as they happen.  Every method does nothing by default, so a
+ * listener need only override those it is interested in.  All are called on the thread running the simulation, and
+ * must not modify the world; ids and generations are passed as plain ints, and nothing is allocated to call them.
+ *
+ * Register a listener with World.addListener().  A world with no listeners does no more than check a field that is
+ * null at each point where it might call one.  None of these points is inside the loop over updates, except with
+ * overlapping generations (see World.setMoranRate()): agents are then born between updates, so onSpeciesCreated()
+ * and onDominanceChange() are called in the middle of a sweep, with some agents updated and others not yet.
+ *
+ * @author richard
+ *
+ */
+
+public interface WorldListener {
+
+	/**
+	 * Called at the end of each sweep, if the listener was registered for sweeps
+	 *
+	 * @param world world that has just been swept
+	 */
+	default void onSweepEnd(World world) { }
+
+	/**
+	 * Called once a new generation has been born, or with overlapping generations, once a generation's worth of
+	 * sweeps is over
+	 *
+	 * @param world world
+	 * @param generation number of generations now passed
+	 */
+	default void onGeneration(World world, int generation) { }
+
+	/**
+	 * Called when a mutant founds a new species; with overlapping generations, this can be in the middle of a sweep
+	 *
+	 * @param world world
+	 * @param speciesId id of the new species
+	 * @param parentId id of the species it arose from
+	 */
+	default void onSpeciesCreated(World world, int speciesId, int parentId) { }
+
+	/**
+	 * Called when the last member of a species has gone; this is noticed when a new generation is born, or with
+	 * overlapping generations, at the end of a generation's worth of sweeps
+	 *
+	 * @param world world
+	 * @param speciesId id of the species
+	 */
+	default void onSpeciesExtinct(World world, int speciesId) { }
+
+	/**
+	 * Called when a different species passes the dominance threshold; with overlapping generations, this can be in
+	 * the middle of a sweep
+	 *
+	 * @param world world
+	 * @param speciesId id of the species now dominant
+	 * @param previousId id of the species dominant until now
+	 */
+	default void onDominanceChange(World world, int speciesId, int previousId) { }
+
+}
@@ -0,0 +1,134 @@
+package simulation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A compact copy of the state of a world: food layout, every agent's position, light, food consumed, species and
+ * genotype, and the bookkeeping needed to carry on evolving (generation count, species count, dominant species).
+ * Genotypes are stored once each, since a population typically holds only a few distinct ones.
+ *
+ * Obtain one with World.captureState() and put it back with World.restoreState().  The costs, mutabilities and
+ * food initialiser are not part of the state; the world being restored into must already be configured.
+ *
+ * @author richard
+ *
+ */
+
+public class WorldState {
+
+	int sizex, sizey, generations, maxSpeciesID;
+
+	// Food sites, as x*sizey + y
+	int[] foodSites;
+
+	// Table of distinct genotypes
+	double[] contrast, brightness, motility, directedness;
+
+	// Per-agent state; genotype is an index into the table above
+	int[] genotype, posx, posy, species, food;
+	boolean[] light;
+
+	// The dominant species' representative
+	int domGenotype, domSpecies;
+
+	WorldState() { }
+
+	/**
+	 * Number of generations the world had been through
+	 *
+	 * @return generation count
+	 */
+	public int getGenerations() {
+		return generations;
+	}
+
+	public int getAgentCount() {
+		return posx.length;
+	}
+
+	public int getGenotypeCount() {
+		return contrast.length;
+	}
+
+	/**
+	 * Write the state in a compact binary form
+	 *
+	 * @param out destination
+	 * @throws IOException if writing fails
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(sizex);
+		out.writeInt(sizey);
+		out.writeInt(generations);
+		out.writeInt(maxSpeciesID);
+		out.writeInt(foodSites.length);
+		for(int f : foodSites) out.writeInt(f);
+		out.writeInt(contrast.length);
+		for(int g=0; g<contrast.length; g++) {
+			out.writeDouble(contrast[g]);
+			out.writeDouble(brightness[g]);
+			out.writeDouble(motility[g]);
+			out.writeDouble(directedness[g]);
+		}
+		out.writeInt(domGenotype);
+		out.writeInt(domSpecies);
+		out.writeInt(posx.length);
+		for(int i=0; i<posx.length; i++) {
+			out.writeInt(genotype[i]);
+			out.writeInt(posx[i]);
+			out.writeInt(posy[i]);
+			out.writeInt(species[i]);
+			out.writeInt(food[i]);
+			out.writeBoolean(light[i]);
+		}
+	}
+
+	/**
+	 * Read a state written by write()
+	 *
+	 * @param in source
+	 * @return the state
+	 * @throws IOException if reading fails
+	 */
+	public static WorldState read(DataInput in) throws IOException {
+		WorldState s = new WorldState();
+		s.sizex = in.readInt();
+		s.sizey = in.readInt();
+		s.generations = in.readInt();
+		s.maxSpeciesID = in.readInt();
+		s.foodSites = new int[in.readInt()];
+		for(int k=0; k<s.foodSites.length; k++) s.foodSites[k] = in.readInt();
+		int ngenotypes = in.readInt();
+		s.contrast = new double[ngenotypes];
+		s.brightness = new double[ngenotypes];
+		s.motility = new double[ngenotypes];
+		s.directedness = new double[ngenotypes];
+		for(int g=0; g<ngenotypes; g++) {
+			s.contrast[g] = in.readDouble();
+			s.brightness[g] = in.readDouble();
+			s.motility[g] = in.readDouble();
+			s.directedness[g] = in.readDouble();
+		}
+		s.domGenotype = in.readInt();
+		s.domSpecies = in.readInt();
+		int n = in.readInt();
+		s.genotype = new int[n];
+		s.posx = new int[n];
+		s.posy = new int[n];
+		s.species = new int[n];
+		s.food = new int[n];
+		s.light = new boolean[n];
+		for(int i=0; i<n; i++) {
+			s.genotype[i] = in.readInt();
+			s.posx[i] = in.readInt();
+			s.posy[i] = in.readInt();
+			s.species[i] = in.readInt();
+			s.food[i] = in.readInt();
+			s.light[i] = in.readBoolean();
+		}
+		return s;
+	}
+
+}
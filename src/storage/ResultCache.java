@@ -0,0 +1,171 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import simulation.World;
+
+/**
+ * A store of the results of runs on local disk, addressed by the contents of their configuration, so that a run
+ * that has been done before, from whichever script, need not be done again.  Each result is a file named by the
+ * SHA-256 hash of the configuration that produced it; the configuration must therefore describe the run completely,
+ * seed included, and results are only worth storing for runs that are reproducible from it.
+ *
+ * Results are written to a temporary file and moved into place, so a reader, in this or another process, sees either
+ * the whole of a result or none of it.  Reading a result marks it as used, and once the files take up more than the
+ * disk budget, those used least recently are deleted.
+ *
+ * The key also covers World.RESULTS_VERSION, so results stored before a change to the simulation that was marked by
+ * increasing it are never found again, and are in time evicted.
+ *
+ * @author richard
+ *
+ */
+
+public class ResultCache {
+
+	// Salt for the hashes: change it if the way results are written changes, to miss results written the old way
+	public static final int VERSION = 1;
+
+	// Extension of result files
+	public static final String EXTENSION = ".res";
+
+	// Default disk budget, in bytes
+	public static final long DEFAULT_BUDGET = 256L << 20;
+
+	private final Path dir;
+	private final long budget;
+
+	/**
+	 * Open a cache, creating its directory if need be
+	 *
+	 * @param dir directory holding the results
+	 * @param budget number of bytes the results may take up
+	 * @throws IOException if the directory cannot be created
+	 */
+	public ResultCache(Path dir, long budget) throws IOException {
+		this.dir = dir;
+		this.budget = budget;
+		Files.createDirectories(dir);
+	}
+
+	/**
+	 * Work out the key for a configuration, which does not depend on the order in which its entries were set
+	 *
+	 * @param config complete description of a run, including its seed
+	 * @return key, as hexadecimal digits
+	 */
+	public static String key(Properties config) {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		StringBuilder text = new StringBuilder("version=" + VERSION + "\nresults=" + World.RESULTS_VERSION + "\n");
+		for(String k : new TreeSet<String>(config.stringPropertyNames())) {
+			text.append(k).append('=').append(config.getProperty(k)).append('\n');
+		}
+		StringBuilder hex = new StringBuilder();
+		for(byte b : sha.digest(text.toString().getBytes(StandardCharsets.UTF_8))) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Look up a result, marking it as used
+	 *
+	 * @param key key from key()
+	 * @return the result, or null if there is none
+	 * @throws IOException if the result is there but cannot be read
+	 */
+	public byte[] get(String key) throws IOException {
+		Path file = dir.resolve(key + EXTENSION);
+		byte[] result;
+		try {
+			result = Files.readAllBytes(file);
+		} catch(NoSuchFileException e) {
+			// Never stored, or evicted, perhaps by another process
+			return null;
+		}
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch(NoSuchFileException e) { /* Evicted by another process since it was read */ }
+		return result;
+	}
+
+	/**
+	 * Store a result, replacing any already stored under the same key, and evict results as needed to keep within
+	 * the disk budget
+	 *
+	 * @param key key from key()
+	 * @param result result to store
+	 * @throws IOException if the result cannot be stored
+	 */
+	public void put(String key, byte[] result) throws IOException {
+		Path file = dir.resolve(key + EXTENSION);
+		Path temp = Files.createTempFile(dir, key, ".tmp");
+		try {
+			Files.write(temp, result);
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch(AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		evict(file);
+	}
+
+	// Delete the results used least recently until the rest fit in the budget, sparing one just stored
+	private void evict(Path spare) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		long total = 0;
+		try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+			for(Path f : entries) {
+				try {
+					total += Files.size(f);
+					files.add(f);
+				} catch(NoSuchFileException e) { /* Evicted by another process */ }
+			}
+		}
+		if(total <= budget) return;
+		Map<Path, FileTime> used = new HashMap<Path, FileTime>();
+		for(Path f : files) {
+			try {
+				used.put(f, Files.getLastModifiedTime(f));
+			} catch(NoSuchFileException e) {
+				used.put(f, FileTime.fromMillis(0));
+			}
+		}
+		files.sort(Comparator.comparing(used::get));
+		for(Path f : files) {
+			if(total <= budget) break;
+			if(f.equals(spare)) continue;
+			try {
+				long size = Files.size(f);
+				Files.delete(f);
+				total -= size;
+			} catch(NoSuchFileException e) { /* Evicted by another process */ }
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Properties;
+
+import simulation.CheckpointableRandom;
+import simulation.World;
+import simulation.WorldState;
+
+/**
+ * Reads a run journal written by RunJournalWriter.  Opening the journal reads the configuration and indexes the
+ * checkpoints; the world state of a checkpoint is read only when it is restored.  An incomplete checkpoint at the
+ * end of the file is ignored.
+ *
+ * @author richard
+ *
+ */
+
+public class RunJournalReader implements Closeable {
+
+	private final FileChannel channel;
+	private Properties config = new Properties();
+
+	// Checkpoint index, in order of generation
+	private int checkpoints = 0;
+	private int[] generation = new int[64];
+	private long[] rngState = new long[64];
+	private double[] rngGaussian = new double[64];
+	private long[] offset = new long[64];
+	private int[] length = new int[64];
+
+	/**
+	 * Open a journal and index its checkpoints
+	 *
+	 * @param file journal file
+	 * @throws IOException if the file cannot be read or is not a journal
+	 */
+	public RunJournalReader(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			index();
+		} catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void index() throws IOException {
+		long size = channel.size();
+		CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+		DataInputStream in = new DataInputStream(counter);
+		if(in.readInt() != RunJournalWriter.MAGIC) throw new IOException("not a run journal");
+		int version = in.readInt();
+		if(version > RunJournalWriter.VERSION) throw new IOException("unsupported journal version " + version);
+		int entries = in.readInt();
+		for(int k=0; k<entries; k++) {
+			String key = in.readUTF();
+			config.setProperty(key, in.readUTF());
+		}
+		try {
+			while(counter.position < size) {
+				int g = in.readInt();
+				long state = in.readLong();
+				double gaussian = version >= 2 ? in.readDouble() : Double.NaN;
+				int len = in.readInt();
+				long start = counter.position;
+				if(start + len > size) break;
+				in.skipBytes(len);
+				if(checkpoints == generation.length) {
+					generation = Arrays.copyOf(generation, 2*checkpoints);
+					rngState = Arrays.copyOf(rngState, 2*checkpoints);
+					rngGaussian = Arrays.copyOf(rngGaussian, 2*checkpoints);
+					offset = Arrays.copyOf(offset, 2*checkpoints);
+					length = Arrays.copyOf(length, 2*checkpoints);
+				}
+				generation[checkpoints] = g;
+				rngState[checkpoints] = state;
+				rngGaussian[checkpoints] = gaussian;
+				offset[checkpoints] = start;
+				length[checkpoints] = len;
+				checkpoints++;
+			}
+		} catch(EOFException e) { /* Incomplete checkpoint at the end */ }
+	}
+
+	// Keeps track of how far into the file we have read
+	private static class CountingInputStream extends FilterInputStream {
+		long position = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if(b >= 0) position++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			int n = in.read(buf, off, len);
+			if(n > 0) position += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			position += skipped;
+			return skipped;
+		}
+	}
+
+	/**
+	 * The configuration the run was started with
+	 *
+	 * @return a copy of the configuration
+	 */
+	public Properties getConfig() {
+		Properties p = new Properties();
+		p.putAll(config);
+		return p;
+	}
+
+	public int getCheckpointCount() {
+		return checkpoints;
+	}
+
+	/**
+	 * Generation at which a checkpoint was taken
+	 *
+	 * @param k checkpoint number
+	 * @return generation count of the world at the checkpoint
+	 */
+	public int getGeneration(int k) {
+		return generation[k];
+	}
+
+	/**
+	 * Find the latest checkpoint at or before a given generation
+	 *
+	 * @param g generation
+	 * @return checkpoint number, or -1 if all checkpoints are later than g
+	 */
+	public int findCheckpoint(int g) {
+		int lo = 0, hi = checkpoints - 1, found = -1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(generation[mid] <= g) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Put a world and its generator into the state recorded at a checkpoint.  The world must already be configured
+	 * as described by getConfig(), and use rng as its generator.
+	 *
+	 * @param k checkpoint number
+	 * @param world world to restore
+	 * @param rng generator to restore
+	 * @throws IOException if the checkpoint cannot be read
+	 */
+	public void restore(int k, World world, CheckpointableRandom rng) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length[k]);
+		long pos = offset[k];
+		while(buf.hasRemaining()) {
+			int n = channel.read(buf, pos + buf.position());
+			if(n < 0) throw new EOFException();
+		}
+		world.restoreState(WorldState.read(new DataInputStream(new ByteArrayInputStream(buf.array()))));
+		rng.setState(rngState[k], rngGaussian[k]);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
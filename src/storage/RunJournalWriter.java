@@ -0,0 +1,89 @@
+package storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import simulation.CheckpointableRandom;
+import simulation.World;
+
+/**
+ * Writes a run journal: the configuration of a run, followed by checkpoints taken at generation boundaries.  Each
+ * checkpoint holds the state of the random number generator and a compact copy of the world (see WorldState), which
+ * is enough to re-simulate the run exactly from that point onwards; see RunJournalReader.
+ *
+ * File layout: int magic, int version, int number of configuration entries, (UTF key, UTF value) pairs, then
+ * checkpoints of the form int generation, long generator state, double Gaussian kept by the generator (NaN if none;
+ * from version 2), int length, length bytes of world state.
+ *
+ * @author richard
+ *
+ */
+
+public class RunJournalWriter implements Closeable {
+
+	public static final int MAGIC = 0x4646504A; // "FFPJ"
+	public static final int VERSION = 2;
+
+	// Conventional extension for journal files
+	public static final String EXTENSION = ".ffj";
+
+	private final DataOutputStream out;
+	private final CheckpointableRandom rng;
+
+	/**
+	 * Create a journal, overwriting any existing file
+	 *
+	 * @param file journal file
+	 * @param config description of the run, sufficient to set up an identical world
+	 * @param rng the generator that the world uses for all its random numbers
+	 * @throws IOException if the file cannot be created
+	 */
+	public RunJournalWriter(Path file, Properties config, CheckpointableRandom rng) throws IOException {
+		this.rng = rng;
+		out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(config.size());
+		for(String key : config.stringPropertyNames()) {
+			out.writeUTF(key);
+			out.writeUTF(config.getProperty(key));
+		}
+	}
+
+	/**
+	 * Record a checkpoint; call this at a generation boundary (after regeneration, before the food is shuffled)
+	 *
+	 * @param world world to record
+	 * @throws IOException if writing fails
+	 */
+	public void checkpoint(World world) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		world.captureState().write(new DataOutputStream(bytes));
+		out.writeInt(world.getGenerations());
+		out.writeLong(rng.getState());
+		out.writeDouble(rng.getCachedGaussian());
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+	/**
+	 * Make sure all checkpoints so far have reached the file
+	 *
+	 * @throws IOException if writing fails
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+}
@@ -0,0 +1,149 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * File format shared by SummaryStoreWriter and SummaryStoreReader.
+ *
+ * A store file holds two tables: one row per generation (the fields of World.Summary) and one row per change of
+ * dominant species.  After a self-describing header listing the tables and their columns, the file is a sequence
+ * of blocks, each holding up to BLOCK_ROWS rows of one table.  Within a block every column is compressed
+ * separately, so a reader can fetch a single column by skipping over the others.
+ *
+ * Columns are held as 64-bit values: integers are delta-encoded (zigzag) and doubles XORed with the previous value,
+ * which makes slowly-varying series mostly zero bytes; the bytes are then transposed (all the high bytes first) and
+ * deflated.
+ *
+ * @author richard
+ *
+ */
+
+public final class SummaryStore {
+
+	public static final int MAGIC = 0x46465053; // "FFPS"
+	public static final int VERSION = 1;
+
+	// Conventional extension for store files
+	public static final String EXTENSION = ".ffs";
+
+	// Maximum number of rows held in a block
+	public static final int BLOCK_ROWS = 4096;
+
+	// Table identifiers, as written in block headers
+	public static final int GENERATIONS = 0;
+	public static final int TRANSITIONS = 1;
+
+	static final String[] TABLE_NAMES = { "generations", "transitions" };
+
+	// Column kinds
+	static final byte INT = 0;
+	static final byte DOUBLE = 1;
+
+	static final String[][] COLUMNS = {
+		{ "generation", "meanBrightness", "meanContrast", "meanMotility", "meanDirectedness",
+			"domBrightness", "domContrast", "domMotility", "domDirectedness", "domSpeciesId",
+			"species", "shannon", "simpson" },
+		{ "generation", "domSpeciesId", "domBrightness", "domContrast", "domMotility", "domDirectedness" }
+	};
+
+	static final byte[][] KINDS = {
+		{ INT, DOUBLE, DOUBLE, DOUBLE, DOUBLE, DOUBLE, DOUBLE, DOUBLE, DOUBLE, INT, INT, DOUBLE, DOUBLE },
+		{ INT, INT, DOUBLE, DOUBLE, DOUBLE, DOUBLE }
+	};
+
+	private SummaryStore() { }
+
+	/**
+	 * Encode the first n values of a column and compress them
+	 *
+	 * @param values raw column values (doubles as their bit patterns)
+	 * @param n number of rows
+	 * @param kind INT or DOUBLE
+	 * @param deflater compressor to use (is reset here)
+	 * @return compressed bytes
+	 */
+	static byte[] encode(long[] values, int n, byte kind, Deflater deflater) {
+		byte[] raw = new byte[8*n];
+		long prev = 0;
+		for(int i=0; i<n; i++) {
+			long v;
+			if(kind == INT) {
+				long d = values[i] - prev;
+				v = (d << 1) ^ (d >> 63);
+			} else {
+				v = values[i] ^ prev;
+			}
+			prev = values[i];
+			// Transpose bytes so that (mostly zero) high-order bytes are contiguous
+			for(int b=0; b<8; b++) {
+				raw[b*n + i] = (byte)(v >>> (8*(7-b)));
+			}
+		}
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteBuffer out = ByteBuffer.allocate(raw.length/2 + 64);
+		byte[] chunk = new byte[4096];
+		while(!deflater.finished()) {
+			int len = deflater.deflate(chunk);
+			if(out.remaining() < len) {
+				ByteBuffer bigger = ByteBuffer.allocate(2*out.capacity() + len);
+				out.flip();
+				bigger.put(out);
+				out = bigger;
+			}
+			out.put(chunk, 0, len);
+		}
+		byte[] ret = new byte[out.position()];
+		out.flip();
+		out.get(ret);
+		return ret;
+	}
+
+	/**
+	 * Decompress and decode a column, reversing encode()
+	 *
+	 * @param compressed compressed bytes
+	 * @param n number of rows
+	 * @param kind INT or DOUBLE
+	 * @param inflater decompressor to use (is reset here)
+	 * @param dest array to receive the decoded values as doubles
+	 * @param offset position in dest of the first row
+	 * @throws IOException if the data are corrupt
+	 */
+	static void decode(byte[] compressed, int n, byte kind, Inflater inflater, double[] dest, int offset) throws IOException {
+		byte[] raw = new byte[8*n];
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			int got = 0;
+			while(got < raw.length) {
+				int len = inflater.inflate(raw, got, raw.length - got);
+				if(len == 0 && (inflater.finished() || inflater.needsInput())) break;
+				got += len;
+			}
+			if(got != raw.length) throw new IOException("truncated column data");
+		} catch(DataFormatException e) {
+			throw new IOException(e);
+		}
+		long prev = 0;
+		for(int i=0; i<n; i++) {
+			long v = 0;
+			for(int b=0; b<8; b++) {
+				v = (v << 8) | (raw[b*n + i] & 0xffL);
+			}
+			if(kind == INT) {
+				prev += (v >>> 1) ^ -(v & 1);
+				dest[offset+i] = prev;
+			} else {
+				prev ^= v;
+				dest[offset+i] = Double.longBitsToDouble(prev);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,247 @@
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a columnar store file written by SummaryStoreWriter.  Opening a file reads only the header and the block
+ * headers; columns are then fetched one at a time, touching only the bytes of that column.  A partly-written block
+ * at the end of the file (e.g., from a run that is still going, or that crashed) is ignored.
+ *
+ * @author richard
+ *
+ */
+
+public class SummaryStoreReader implements Closeable {
+
+	/**
+	 * Receives one column from each of a number of runs
+	 */
+	public interface ColumnVisitor {
+		void visit(Path run, double[] values);
+	}
+
+	// Fixed part of a block header: table, rows, columns
+	private static final int BLOCK_HEADER = 1 + 4 + 4;
+
+	private final FileChannel channel;
+	private final Inflater inflater = new Inflater();
+
+	private String[][] columns;
+	private byte[][] kinds;
+
+	// Index of complete blocks
+	private static class Block {
+		int table, rows;
+		long[] offsets; // position of each column's data
+		int[] lengths;  // compressed length of each column
+	}
+	private List<Block> blocks = new ArrayList<Block>();
+	private int[] rowCounts;
+	private long validLength;
+
+	/**
+	 * Open a store file and index its blocks
+	 *
+	 * @param file store file
+	 * @throws IOException if the file cannot be read or is not a store
+	 */
+	public SummaryStoreReader(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			readHeader();
+			indexBlocks();
+		} catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void readHeader() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int)Math.min(channel.size(), 65536));
+		readFully(buf, 0);
+		ByteArrayInputStream bytes = new ByteArrayInputStream(buf.array(), 0, buf.limit());
+		DataInputStream in = new DataInputStream(bytes);
+		if(in.readInt() != SummaryStore.MAGIC) throw new IOException("not a summary store");
+		int version = in.readInt();
+		if(version > SummaryStore.VERSION) throw new IOException("unsupported store version " + version);
+		int ntables = in.readInt();
+		columns = new String[ntables][];
+		kinds = new byte[ntables][];
+		for(int t=0; t<ntables; t++) {
+			in.readUTF();
+			int ncols = in.readInt();
+			columns[t] = new String[ncols];
+			kinds[t] = new byte[ncols];
+			for(int c=0; c<ncols; c++) {
+				columns[t][c] = in.readUTF();
+				kinds[t][c] = in.readByte();
+			}
+		}
+		rowCounts = new int[ntables];
+		validLength = buf.limit() - bytes.available();
+	}
+
+	private void indexBlocks() throws IOException {
+		long size = channel.size();
+		long pos = validLength;
+		ByteBuffer head = ByteBuffer.allocate(BLOCK_HEADER);
+		while(pos + BLOCK_HEADER <= size) {
+			head.clear();
+			readFully(head, pos);
+			int table = head.get(), rows = head.getInt(), ncols = head.getInt();
+			if(table < 0 || table >= columns.length || ncols != columns[table].length) throw new IOException("corrupt block header at " + pos);
+			if(pos + BLOCK_HEADER + 4L*ncols > size) break;
+			ByteBuffer lens = ByteBuffer.allocate(4*ncols);
+			readFully(lens, pos + BLOCK_HEADER);
+			Block b = new Block();
+			b.table = table;
+			b.rows = rows;
+			b.offsets = new long[ncols];
+			b.lengths = new int[ncols];
+			long offset = pos + BLOCK_HEADER + 4L*ncols;
+			for(int c=0; c<ncols; c++) {
+				b.lengths[c] = lens.getInt();
+				b.offsets[c] = offset;
+				offset += b.lengths[c];
+			}
+			if(offset > size) break;
+			blocks.add(b);
+			rowCounts[table] += rows;
+			pos = validLength = offset;
+		}
+	}
+
+	private void readFully(ByteBuffer buf, long pos) throws IOException {
+		while(buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if(n < 0) throw new IOException("unexpected end of file");
+			pos += n;
+		}
+		buf.flip();
+	}
+
+	/**
+	 * Names of the columns in a table
+	 *
+	 * @param table SummaryStore.GENERATIONS or SummaryStore.TRANSITIONS
+	 * @return column names in the order they were written
+	 */
+	public String[] getColumnNames(int table) {
+		return table < columns.length ? columns[table].clone() : new String[0];
+	}
+
+	/**
+	 * Number of complete rows in a table
+	 *
+	 * @param table SummaryStore.GENERATIONS or SummaryStore.TRANSITIONS
+	 * @return number of rows
+	 */
+	public int getRowCount(int table) {
+		return table < rowCounts.length ? rowCounts[table] : 0;
+	}
+
+	/**
+	 * Length of the file up to the end of the last complete block
+	 *
+	 * @return length in bytes
+	 */
+	public long getValidLength() {
+		return validLength;
+	}
+
+	/**
+	 * Read one column of a table in full; integer columns are returned exactly as doubles
+	 *
+	 * @param table SummaryStore.GENERATIONS or SummaryStore.TRANSITIONS
+	 * @param column name of the column
+	 * @return values, one per row
+	 * @throws IOException if the file cannot be read or has no such column
+	 */
+	public double[] readColumn(int table, String column) throws IOException {
+		int c = table < columns.length ? Arrays.asList(columns[table]).indexOf(column) : -1;
+		if(c < 0) throw new IOException("no column " + column);
+		double[] values = new double[rowCounts[table]];
+		int row = 0;
+		for(Block b : blocks) {
+			if(b.table != table) continue;
+			ByteBuffer data = ByteBuffer.allocate(b.lengths[c]);
+			readFully(data, b.offsets[c]);
+			SummaryStore.decode(data.array(), b.rows, kinds[table][c], inflater, values, row);
+			row += b.rows;
+		}
+		return values;
+	}
+
+	/**
+	 * The species that was dominant at the end of the stored data
+	 *
+	 * @return species id, or -1 if nothing has been stored
+	 */
+	public int getLastDominator() throws IOException {
+		if(getRowCount(SummaryStore.TRANSITIONS) == 0) return -1;
+		double[] ids = readColumn(SummaryStore.TRANSITIONS, "domSpeciesId");
+		return (int)ids[ids.length-1];
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		inflater.end();
+	}
+
+	/**
+	 * Read the same column from each of a number of store files, e.g., to average a quantity over an ensemble of runs
+	 *
+	 * @param runs store files
+	 * @param table SummaryStore.GENERATIONS or SummaryStore.TRANSITIONS
+	 * @param column name of the column
+	 * @param visitor receives each run's column in turn
+	 * @throws IOException if any file cannot be read
+	 */
+	public static void scan(Iterable<Path> runs, int table, String column, ColumnVisitor visitor) throws IOException {
+		for(Path run : runs) {
+			try(SummaryStoreReader reader = new SummaryStoreReader(run)) {
+				visitor.visit(run, reader.readColumn(table, column));
+			}
+		}
+	}
+
+	/**
+	 * Print one column from each of the store files given on the command line, one file per line, e.g.
+	 *   java storage.SummaryStoreReader transitions generation run*.ffs
+	 */
+	public static void main(String args[]) throws IOException {
+		if(args.length < 3) {
+			System.err.println("usage: SummaryStoreReader generations|transitions column file...");
+			return;
+		}
+		int table = Arrays.asList(SummaryStore.TABLE_NAMES).indexOf(args[0]);
+		if(table < 0) {
+			System.err.println("unknown table " + args[0]);
+			return;
+		}
+		List<Path> runs = new ArrayList<Path>();
+		for(int i=2; i<args.length; i++) runs.add(Paths.get(args[i]));
+		scan(runs, table, args[1], new ColumnVisitor() {
+			@Override
+			public void visit(Path run, double[] values) {
+				StringBuilder line = new StringBuilder(run.toString());
+				for(double v : values) line.append('\t').append(v);
+				System.out.println(line);
+			}
+		});
+	}
+
+}
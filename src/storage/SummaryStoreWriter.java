@@ -0,0 +1,218 @@
+package storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.zip.Deflater;
+
+import simulation.World.Summary;
+
+/**
+ * Appends per-generation summaries to a columnar store file (see SummaryStore for the format).  Dominance
+ * transitions are detected from the summaries and written to their own table.
+ *
+ * This can be subscribed to a SummaryStream (use the BLOCK policy if every generation must be stored); the file
+ * is closed when the stream completes.  Otherwise call append() for each generation and close() at the end.
+ * If the file already exists, new blocks are added after the last complete block in it.
+ *
+ * @author richard
+ *
+ */
+
+public class SummaryStoreWriter implements Flow.Subscriber<Summary>, Closeable {
+
+	private final FileChannel channel;
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+	// Rows waiting to be written, column-major, one set per table
+	private final long[][][] pending = new long[SummaryStore.TABLE_NAMES.length][][];
+	private final int[] pendingRows = new int[SummaryStore.TABLE_NAMES.length];
+
+	private int lastDominator = -1;
+	private IOException failure = null;
+	private CountDownLatch closed = new CountDownLatch(1);
+
+	/**
+	 * Open a store file for appending, creating it if necessary
+	 *
+	 * @param file store file
+	 * @throws IOException if the file cannot be opened or is not a compatible store
+	 */
+	public SummaryStoreWriter(Path file) throws IOException {
+		for(int t=0; t<pending.length; t++) {
+			pending[t] = new long[SummaryStore.COLUMNS[t].length][SummaryStore.BLOCK_ROWS];
+		}
+		if(Files.exists(file) && Files.size(file) > 0) {
+			// Check the schema, and discard any partly-written block at the end
+			long end;
+			try(SummaryStoreReader reader = new SummaryStoreReader(file)) {
+				for(int t=0; t<pending.length; t++) {
+					if(!Arrays.equals(reader.getColumnNames(t), SummaryStore.COLUMNS[t])) {
+						throw new IOException(file + " was written with a different set of columns");
+					}
+				}
+				end = reader.getValidLength();
+				lastDominator = reader.getLastDominator();
+			}
+			channel = FileChannel.open(file, StandardOpenOption.WRITE);
+			channel.truncate(end);
+			channel.position(end);
+		} else {
+			channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			writeHeader();
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(SummaryStore.MAGIC);
+		out.writeInt(SummaryStore.VERSION);
+		out.writeInt(SummaryStore.TABLE_NAMES.length);
+		for(int t=0; t<SummaryStore.TABLE_NAMES.length; t++) {
+			out.writeUTF(SummaryStore.TABLE_NAMES[t]);
+			out.writeInt(SummaryStore.COLUMNS[t].length);
+			for(int c=0; c<SummaryStore.COLUMNS[t].length; c++) {
+				out.writeUTF(SummaryStore.COLUMNS[t][c]);
+				out.writeByte(SummaryStore.KINDS[t][c]);
+			}
+		}
+		out.flush();
+		writeFully(ByteBuffer.wrap(bytes.toByteArray()));
+	}
+
+	/**
+	 * Add one generation's summary to the store
+	 *
+	 * @param s summary to record
+	 * @throws IOException if a block could not be written
+	 */
+	public void append(Summary s) throws IOException {
+		addRow(SummaryStore.GENERATIONS, s.generation,
+				Double.doubleToRawLongBits(s.meanBrightness), Double.doubleToRawLongBits(s.meanContrast),
+				Double.doubleToRawLongBits(s.meanMotility), Double.doubleToRawLongBits(s.meanDirectedness),
+				Double.doubleToRawLongBits(s.domBrightness), Double.doubleToRawLongBits(s.domContrast),
+				Double.doubleToRawLongBits(s.domMotility), Double.doubleToRawLongBits(s.domDirectedness),
+				s.domSpeciesId, s.species, Double.doubleToRawLongBits(s.shannon), Double.doubleToRawLongBits(s.simpson));
+		if(s.domSpeciesId != lastDominator) {
+			lastDominator = s.domSpeciesId;
+			addRow(SummaryStore.TRANSITIONS, s.generation, s.domSpeciesId,
+					Double.doubleToRawLongBits(s.domBrightness), Double.doubleToRawLongBits(s.domContrast),
+					Double.doubleToRawLongBits(s.domMotility), Double.doubleToRawLongBits(s.domDirectedness));
+		}
+	}
+
+	private void addRow(int table, long... values) throws IOException {
+		int row = pendingRows[table];
+		for(int c=0; c<values.length; c++) pending[table][c][row] = values[c];
+		if(++pendingRows[table] == SummaryStore.BLOCK_ROWS) flushTable(table);
+	}
+
+	private void flushTable(int table) throws IOException {
+		int rows = pendingRows[table];
+		if(rows == 0) return;
+		int ncols = pending[table].length;
+		byte[][] payload = new byte[ncols][];
+		int total = 0;
+		for(int c=0; c<ncols; c++) {
+			payload[c] = SummaryStore.encode(pending[table][c], rows, SummaryStore.KINDS[table][c], deflater);
+			total += payload[c].length;
+		}
+		ByteBuffer block = ByteBuffer.allocate(1 + 4 + 4 + 4*ncols + total);
+		block.put((byte)table).putInt(rows).putInt(ncols);
+		for(byte[] p : payload) block.putInt(p.length);
+		for(byte[] p : payload) block.put(p);
+		block.flip();
+		writeFully(block);
+		pendingRows[table] = 0;
+	}
+
+	private void writeFully(ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) channel.write(buf);
+	}
+
+	/**
+	 * Write out any partly-filled blocks, so that everything appended so far is visible to readers
+	 *
+	 * @throws IOException if a block could not be written
+	 */
+	public void flush() throws IOException {
+		for(int t=0; t<pendingRows.length; t++) flushTable(t);
+		channel.force(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(!channel.isOpen()) return;
+		try {
+			for(int t=0; t<pendingRows.length; t++) flushTable(t);
+		} finally {
+			channel.close();
+			deflater.end();
+			closed.countDown();
+		}
+	}
+
+	/**
+	 * Wait until the file has been closed, e.g., after completing the stream this writer is subscribed to
+	 */
+	public void awaitClosed() {
+		try {
+			closed.await();
+		} catch(InterruptedException e) { /* Return silently */ }
+	}
+
+	/**
+	 * Any error that occurred while writing summaries received as a subscriber
+	 *
+	 * @return the first such error, or null if there was none
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	//  SUBSCRIBER METHODS
+
+	private Flow.Subscription subscription = null;
+
+	@Override
+	public void onSubscribe(Flow.Subscription s) {
+		subscription = s;
+		s.request(Long.MAX_VALUE);
+	}
+
+	@Override
+	public void onNext(Summary s) {
+		try {
+			append(s);
+		} catch(IOException e) {
+			failure = e;
+			subscription.cancel();
+			try { close(); } catch(IOException ignored) { /* Already failed */ }
+		}
+	}
+
+	@Override
+	public void onError(Throwable e) {
+		try { close(); } catch(IOException ignored) { /* Nothing more to do */ }
+	}
+
+	@Override
+	public void onComplete() {
+		try {
+			close();
+		} catch(IOException e) {
+			failure = e;
+		}
+	}
+
+}
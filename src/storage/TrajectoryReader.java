@@ -0,0 +1,228 @@
+package storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays a trajectory written by TrajectoryRecorder.  The file is memory-mapped and its frames indexed when it is
+ * opened; seek() then reconstructs the state at any frame by starting from the nearest earlier keyframe (or from
+ * the current state, if that is closer) and applying the deltas in between.
+ *
+ * @author richard
+ *
+ */
+
+public class TrajectoryReader implements Closeable {
+
+	// Largest region mapped in one go; frames never straddle two regions
+	private static final long SEGMENT_SIZE = 1L << 30;
+
+	private final FileChannel channel;
+	private List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+	// Frame index: which mapped segment each frame is in, and where
+	private int frames = 0;
+	private int[] frameSegment = new int[1024];
+	private int[] frameOffset = new int[1024];
+	private boolean[] isKeyframe = new boolean[1024];
+
+	// Reconstructed state at the current frame
+	private int current = -1;
+	private int generation, sweep;
+	private int sizex = 0, sizey = 0;
+	private boolean[][] food = new boolean[0][0];
+	private int nagents = 0;
+	private int[] posx = new int[0], posy = new int[0], species = new int[0];
+	private boolean[] lit = new boolean[0];
+
+	/**
+	 * Open a trajectory file and index its frames; an incomplete frame at the end of the file is ignored
+	 *
+	 * @param file trajectory file
+	 * @throws IOException if the file cannot be read or is not a trajectory
+	 */
+	public TrajectoryReader(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			index();
+		} catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void index() throws IOException {
+		long size = channel.size();
+		if(size < 8) throw new IOException("not a trajectory file");
+		ByteBuffer head = ByteBuffer.allocate(8);
+		while(head.hasRemaining()) channel.read(head, head.position());
+		head.flip();
+		if(head.getInt() != TrajectoryRecorder.MAGIC) throw new IOException("not a trajectory file");
+		int version = head.getInt();
+		if(version > TrajectoryRecorder.VERSION) throw new IOException("unsupported trajectory version " + version);
+
+		long start = 8;
+		while(start < size) {
+			long length = Math.min(SEGMENT_SIZE, size - start);
+			MappedByteBuffer seg = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+			int segIndex = segments.size();
+			int pos = 0;
+			while(pos + TrajectoryRecorder.FRAME_HEADER <= length) {
+				byte type = seg.get(pos);
+				int payload = seg.getInt(pos + 1);
+				if(pos + TrajectoryRecorder.FRAME_HEADER + (long)payload > length) break;
+				addFrame(segIndex, pos, type == TrajectoryRecorder.KEYFRAME);
+				pos += TrajectoryRecorder.FRAME_HEADER + payload;
+			}
+			if(pos == 0) break; // nothing complete left in the file
+			segments.add(seg);
+			start += pos;
+			if(length < SEGMENT_SIZE) break;
+		}
+	}
+
+	private void addFrame(int segment, int offset, boolean key) {
+		if(frames == frameOffset.length) {
+			frameSegment = Arrays.copyOf(frameSegment, 2*frames);
+			frameOffset = Arrays.copyOf(frameOffset, 2*frames);
+			isKeyframe = Arrays.copyOf(isKeyframe, 2*frames);
+		}
+		frameSegment[frames] = segment;
+		frameOffset[frames] = offset;
+		isKeyframe[frames] = key;
+		frames++;
+	}
+
+	/**
+	 * Number of complete frames (one per recorded sweep)
+	 *
+	 * @return frame count
+	 */
+	public int getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * Reconstruct the state of the world as it was at the given frame
+	 *
+	 * @param frame frame number, from 0 to getFrameCount()-1
+	 */
+	public void seek(int frame) {
+		if(frame < 0 || frame >= frames) throw new IndexOutOfBoundsException("frame " + frame);
+		if(frame == current) return;
+		int key = frame;
+		while(key > 0 && !isKeyframe[key]) key--;
+		// Carry on from where we are if that's no further back than the keyframe
+		int from = (current >= key && current < frame) ? current+1 : key;
+		for(int f=from; f<=frame; f++) apply(f);
+		current = frame;
+	}
+
+	private void apply(int frame) {
+		ByteBuffer buf = segments.get(frameSegment[frame]);
+		int pos = frameOffset[frame];
+		boolean key = buf.get(pos) == TrajectoryRecorder.KEYFRAME;
+		pos += TrajectoryRecorder.FRAME_HEADER;
+		generation = buf.getInt(pos);
+		sweep = buf.getInt(pos + 4);
+		pos += TrajectoryRecorder.FRAME_STAMP;
+		if(key) {
+			sizex = buf.getInt(pos);
+			sizey = buf.getInt(pos + 4);
+			int nfood = buf.getInt(pos + 8);
+			pos += 12;
+			food = new boolean[sizex][sizey];
+			for(int k=0; k<nfood; k++, pos+=8) food[buf.getInt(pos)][buf.getInt(pos + 4)] = true;
+			nagents = buf.getInt(pos);
+			pos += 4;
+			if(posx.length < nagents) {
+				posx = new int[nagents];
+				posy = new int[nagents];
+				species = new int[nagents];
+				lit = new boolean[nagents];
+			}
+			for(int i=0; i<nagents; i++, pos+=13) {
+				posx[i] = buf.getInt(pos);
+				posy[i] = buf.getInt(pos + 4);
+				lit[i] = buf.get(pos + 8) != 0;
+				species[i] = buf.getInt(pos + 9);
+			}
+		} else {
+			int nchanged = buf.getInt(pos);
+			pos += 4;
+			for(int k=0; k<nchanged; k++, pos+=12) {
+				int v = buf.getInt(pos);
+				int i = v >>> 1;
+				lit[i] = (v & 1) != 0;
+				posx[i] = buf.getInt(pos + 4);
+				posy[i] = buf.getInt(pos + 8);
+			}
+		}
+	}
+
+	//  STATE AT THE CURRENT FRAME
+
+	public int getFrame() {
+		return current;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Number of sweeps into the current generation
+	 *
+	 * @return sweep count, starting from 1
+	 */
+	public int getSweep() {
+		return sweep;
+	}
+
+	public int getSizeX() {
+		return sizex;
+	}
+
+	public int getSizeY() {
+		return sizey;
+	}
+
+	public boolean isFoodAt(int x, int y) {
+		return food[x][y];
+	}
+
+	public int getAgentCount() {
+		return nagents;
+	}
+
+	public int getX(int agent) {
+		return posx[agent];
+	}
+
+	public int getY(int agent) {
+		return posy[agent];
+	}
+
+	public boolean isLightOn(int agent) {
+		return lit[agent];
+	}
+
+	public int getSpeciesId(int agent) {
+		return species[agent];
+	}
+
+	@Override
+	public void close() throws IOException {
+		segments.clear();
+		channel.close();
+	}
+
+}
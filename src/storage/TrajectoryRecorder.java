@@ -0,0 +1,208 @@
+package storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import simulation.Agent;
+import simulation.SweepRecorder;
+import simulation.World;
+
+/**
+ * Records the positions and light states of agents after every sweep, for later replay with TrajectoryReader.
+ *
+ * Each sweep produces one frame.  Most frames are deltas, listing only those agents that have moved or changed
+ * their light since the previous frame.  A keyframe, holding the food layout and every agent, is written
+ * periodically so that a reader can seek without replaying from the start, at the first frame of every generation,
+ * since the food is moved between generations, and whenever the population has been replaced (e.g., after a reset).
+ *
+ * File layout: int magic, int version, then frames of the form
+ *   byte type, int payload length, int generation, int sweep, ...
+ * where a keyframe continues
+ *   int sizex, int sizey, int nfood, nfood * (int x, int y), int nagents, nagents * (int x, int y, byte lit, int species)
+ * and a delta frame continues
+ *   int nchanged, nchanged * (int index*2 + lit, int x, int y)
+ *
+ * @author richard
+ *
+ */
+
+public class TrajectoryRecorder implements SweepRecorder, Closeable {
+
+	public static final int MAGIC = 0x46465054; // "FFPT"
+	public static final int VERSION = 1;
+
+	// Conventional extension for trajectory files
+	public static final String EXTENSION = ".fft";
+
+	static final byte DELTA = 0;
+	static final byte KEYFRAME = 1;
+
+	// Size of a frame header (type and length) and of the generation and sweep that start every frame
+	static final int FRAME_HEADER = 1 + 4;
+	static final int FRAME_STAMP = 4 + 4;
+
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 100;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final FileChannel channel;
+	private final int keyframeInterval;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	// State as of the previous frame
+	private Agent[] prevAgent = new Agent[0];
+	private int[] prevX = new int[0], prevY = new int[0];
+	private boolean[] prevLit = new boolean[0];
+	private int lastGeneration = -1;
+	private int sweep = 0;
+	private int sinceKeyframe = 0;
+
+	// Indices of agents that changed in the current frame
+	private int[] changed = new int[0];
+
+	private IOException failure = null;
+
+	/**
+	 * Create a recorder writing to the given file, which is overwritten
+	 *
+	 * @param file trajectory file
+	 * @param keyframeInterval maximum number of frames between keyframes
+	 * @throws IOException if the file cannot be created
+	 */
+	public TrajectoryRecorder(Path file, int keyframeInterval) throws IOException {
+		if(keyframeInterval < 1) throw new IllegalArgumentException("keyframe interval must be positive");
+		this.keyframeInterval = keyframeInterval;
+		channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		buffer.putInt(MAGIC).putInt(VERSION);
+		// Make sure the first frame is a keyframe
+		sinceKeyframe = keyframeInterval;
+	}
+
+	public TrajectoryRecorder(Path file) throws IOException {
+		this(file, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	@Override
+	public void recordSweep(World world) {
+		if(failure != null) return;
+		try {
+			// A new generation has new food, which only keyframes hold, even if the agents were not replaced
+			boolean newGeneration = world.getGenerations() != lastGeneration;
+			if(newGeneration) {
+				lastGeneration = world.getGenerations();
+				sweep = 0;
+			}
+			sweep++;
+			List<Agent> agents = world.getAgents();
+			if(++sinceKeyframe >= keyframeInterval || newGeneration || !writeDelta(world, agents)) {
+				writeKeyframe(world, agents);
+			}
+		} catch(IOException e) {
+			failure = e;
+		}
+	}
+
+	/*
+	 * Write a delta frame, unless the population has been replaced in which case we return false
+	 */
+	private boolean writeDelta(World world, List<Agent> agents) throws IOException {
+		int n = agents.size();
+		if(n != prevAgent.length) return false;
+		int nchanged = 0;
+		for(int i=0; i<n; i++) {
+			Agent a = agents.get(i);
+			if(a != prevAgent[i]) return false;
+			int x = a.getX(), y = a.getY();
+			boolean lit = a.isLightOn();
+			if(x != prevX[i] || y != prevY[i] || lit != prevLit[i]) {
+				changed[nchanged++] = i;
+				prevX[i] = x;
+				prevY[i] = y;
+				prevLit[i] = lit;
+			}
+		}
+		int payload = FRAME_STAMP + 4 + 12*nchanged;
+		ensureSpace(FRAME_HEADER + payload);
+		buffer.put(DELTA).putInt(payload).putInt(lastGeneration).putInt(sweep).putInt(nchanged);
+		for(int k=0; k<nchanged; k++) {
+			int i = changed[k];
+			buffer.putInt((i << 1) | (prevLit[i] ? 1 : 0)).putInt(prevX[i]).putInt(prevY[i]);
+		}
+		return true;
+	}
+
+	private void writeKeyframe(World world, List<Agent> agents) throws IOException {
+		sinceKeyframe = 0;
+		int sx = world.getSizeX(), sy = world.getSizeY();
+		int nfood = 0;
+		for(int x=0; x<sx; x++) {
+			for(int y=0; y<sy; y++) {
+				if(world.isFoodAt(x, y)) nfood++;
+			}
+		}
+		int n = agents.size();
+		if(prevAgent.length != n) {
+			prevAgent = new Agent[n];
+			prevX = new int[n];
+			prevY = new int[n];
+			prevLit = new boolean[n];
+			changed = new int[n];
+		}
+		int payload = FRAME_STAMP + 4 + 4 + 4 + 8*nfood + 4 + 13*n;
+		ensureSpace(FRAME_HEADER + payload);
+		buffer.put(KEYFRAME).putInt(payload).putInt(lastGeneration).putInt(sweep);
+		buffer.putInt(sx).putInt(sy).putInt(nfood);
+		for(int x=0; x<sx; x++) {
+			for(int y=0; y<sy; y++) {
+				if(world.isFoodAt(x, y)) buffer.putInt(x).putInt(y);
+			}
+		}
+		buffer.putInt(n);
+		for(int i=0; i<n; i++) {
+			Agent a = agents.get(i);
+			prevAgent[i] = a;
+			prevX[i] = a.getX();
+			prevY[i] = a.getY();
+			prevLit[i] = a.isLightOn();
+			buffer.putInt(prevX[i]).putInt(prevY[i]).put((byte)(prevLit[i] ? 1 : 0)).putInt(a.getSpeciesId());
+		}
+	}
+
+	private void ensureSpace(int bytes) throws IOException {
+		if(buffer.remaining() >= bytes) return;
+		drain();
+		if(buffer.capacity() < bytes) buffer = ByteBuffer.allocateDirect(bytes);
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Any error that occurred while recording; recording stops after the first error
+	 *
+	 * @return the error, or null if there was none
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(!channel.isOpen()) return;
+		try {
+			if(failure == null) drain();
+		} finally {
+			channel.close();
+		}
+		if(failure != null) throw failure;
+	}
+
+}
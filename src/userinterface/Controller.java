@@ -1,15 +1,21 @@
 package userinterface;
 
 import java.awt.BorderLayout;
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 import javax.swing.JFrame;
 import javax.swing.JTabbedPane;
 
 import simulation.Agent;
+import simulation.LineageTracker;
+import simulation.SummaryStream;
 import simulation.World;
+import simulation.WorldListener;
 import simulation.World.Summary;
+import storage.TrajectoryReader;
+import storage.TrajectoryRecorder;
 
 /**
  * The controller object manages a world, providing a means for it to be manipulated and different panels
@@ -25,6 +31,9 @@ public class Controller {
 	// We allow direct access to the underlying World and locations of food (which rarely change)
 	private World world = new World();
 
+	// Per-generation statistics, published as each generation ends; views subscribe to this
+	private SummaryStream statistics = new SummaryStream();
+
 	// Main high-level UI components
 	private JFrame masterWindow = new JFrame(WINDOW_TITLE);
 	private WorldView worldView = new WorldView(this);
@@ -32,11 +41,20 @@ public class Controller {
 	private SetupPanel setupPanel = new SetupPanel();
 	private StatePanel statePanel = new StatePanel(this);
 	private GraphPanel graphPanel = new GraphPanel(this);
+	private ReplayPanel replayPanel = new ReplayPanel(this);
 	
 	// Set up and display a UI
 	
 	public Controller() {
 		setupPanel.configureWorld(world);
+
+		// Any snapshot is out of date once the world has been swept
+		world.addListener(new WorldListener() {
+			@Override
+			public void onSweepEnd(World w) {
+				synchronized(Controller.this) { snapshot = null; }
+			}
+		}, true);
 		
 		masterWindow.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		masterWindow.add(worldView);
@@ -45,6 +63,7 @@ public class Controller {
 		switcher.addTab("Setup", setupPanel);
 		switcher.addTab("Agents", statePanel);
 		switcher.addTab("Graphs", graphPanel);
+		switcher.addTab("Replay", replayPanel);
 		masterWindow.add(switcher, BorderLayout.EAST);
 		masterWindow.pack();
 		masterWindow.setVisible(true);
@@ -78,17 +97,13 @@ public class Controller {
 					world.regenerateAgents(mutate);
 					world.shuffleFood();
 					// Invalidate snapshot and notify statistics
-					synchronized(Controller.this) {
-						stats.add(summary);
-						snapshot = null;
-					}
+					synchronized(Controller.this) { snapshot = null; }
+					statistics.publish(summary);
 				}
 				for(int g=0; g<generations && !isInterrupted(); g++) {
 					for(int s=0; s<sweeps && !isInterrupted(); s++) {
 						// We don't allow a job to be interrupted mid-sweep
 						world.sweep();
-						// Invalidate snapshot
-						synchronized(Controller.this) { snapshot = null; }
 					}
 					if(!isInterrupted()) {
 						if(g<generations-1) {
@@ -97,10 +112,8 @@ public class Controller {
 							world.regenerateAgents(mutate);
 							world.shuffleFood();
 							// Invalidate snapshot and notify statistics
-							synchronized(Controller.this) {
-								stats.add(summary);
-								snapshot = null;
-							}
+							synchronized(Controller.this) { snapshot = null; }
+							statistics.publish(summary);
 						}
 						else finishedNormally = true;
 					}
@@ -128,6 +141,8 @@ public class Controller {
 	 * Private method to start a job: use one of the run... methods to start a particular job
 	 */
 	private void startJob(BatchJob job) {
+		// Running the simulation returns the view to the live world
+		if(isReplaying()) closeReplay();
 		synchronized(this) {
 			if(runningJob != null) return;
 			job.start();
@@ -138,6 +153,7 @@ public class Controller {
 		worldView.jobStarted();
 		statePanel.jobStarted();
 		graphPanel.jobStarted();
+		replayPanel.jobStarted();
 	}
 	
 	private void jobFinished() {
@@ -146,7 +162,7 @@ public class Controller {
 		runPanel.jobFinished();
 		statePanel.jobFinished();
 		graphPanel.jobFinished();
-
+		replayPanel.jobFinished();
 	}
 
 	/**
@@ -177,7 +193,6 @@ public class Controller {
 		// Clear the snapshot, and prevent autoregeneration
 		snapshot = null;
 		pendingRegeneration = false;
-		stats.clear();
 		
 		if(!viewsNotified) {
 			viewsNotified = true;
@@ -262,7 +277,21 @@ public class Controller {
 	 * @return an array of site statuses
 	 */
 	public synchronized Site[][] getSnapshot() {
-		if(snapshot == null) {
+		if(snapshot == null && replay != null) {
+			// Create snapshot from the current frame of the replay
+			snapshot = new Site[replay.getSizeX()][replay.getSizeY()];
+			for(int x=0; x<replay.getSizeX(); x++) {
+				for(int y=0; y<replay.getSizeY(); y++) {
+					snapshot[x][y] = new Site();
+					snapshot[x][y].food = replay.isFoodAt(x, y);
+				}
+			}
+			for(int i=0; i<replay.getAgentCount(); i++) {
+				snapshot[replay.getX(i)][replay.getY(i)].agents++;
+				if(replay.isLightOn(i)) snapshot[replay.getX(i)][replay.getY(i)].lit++;
+			}
+		}
+		else if(snapshot == null) {
 			// Create snapshot
 			snapshot = new Site[world.getSizeX()][world.getSizeY()];
 			for(int x=0; x<world.getSizeX(); x++) {
@@ -279,6 +308,112 @@ public class Controller {
 		return snapshot;
 	}
 	
+	//  RECORDING AND REPLAY
+	
+	private TrajectoryRecorder recorder = null;
+	private TrajectoryReader replay = null;
+	
+	/**
+	 * Record the state of the world after every sweep to a trajectory file, until stopRecording() is called
+	 * 
+	 * @param file file to record to (overwritten)
+	 * @throws IOException if the file cannot be created
+	 */
+	public synchronized void startRecording(File file) throws IOException {
+		stopRecording();
+		recorder = new TrajectoryRecorder(file.toPath());
+		world.setRecorder(recorder);
+	}
+	
+	/**
+	 * Stop any recording in progress, waiting for a running job to finish first
+	 * 
+	 * @throws IOException if there was an error writing the trajectory
+	 */
+	public synchronized void stopRecording() throws IOException {
+		if(recorder == null) return;
+		stopJob(true);
+		world.setRecorder(null);
+		TrajectoryRecorder r = recorder;
+		recorder = null;
+		r.close();
+	}
+	
+	public synchronized boolean isRecording() {
+		return recorder != null;
+	}
+	
+	/**
+	 * Show a recorded trajectory in the world view instead of the live world, starting at its first frame
+	 * 
+	 * @param file trajectory file
+	 * @throws IOException if the file cannot be read or is empty
+	 */
+	public void openReplay(File file) throws IOException {
+		stopJob(true);
+		TrajectoryReader r = new TrajectoryReader(file.toPath());
+		if(r.getFrameCount() == 0) {
+			r.close();
+			throw new IOException(file.getName() + " contains no complete frames");
+		}
+		r.seek(0);
+		synchronized(this) {
+			if(replay != null) replay.close();
+			replay = r;
+			snapshot = null;
+		}
+		worldView.repaint();
+		replayPanel.replayChanged();
+	}
+	
+	/**
+	 * Return the world view to the live world
+	 */
+	public void closeReplay() {
+		synchronized(this) {
+			if(replay == null) return;
+			try {
+				replay.close();
+			} catch(IOException e) { /* Nothing more to do with it */ }
+			replay = null;
+			snapshot = null;
+		}
+		worldView.repaint();
+		replayPanel.replayChanged();
+	}
+	
+	public synchronized boolean isReplaying() {
+		return replay != null;
+	}
+	
+	public synchronized int getReplayFrameCount() {
+		return replay == null ? 0 : replay.getFrameCount();
+	}
+	
+	/**
+	 * Move the replay to the specified frame (one frame per recorded sweep)
+	 * 
+	 * @param frame frame number
+	 */
+	public void seekReplay(int frame) {
+		synchronized(this) {
+			if(replay == null || frame == replay.getFrame()) return;
+			replay.seek(frame);
+			snapshot = null;
+		}
+		worldView.repaint();
+	}
+	
+	/**
+	 * Describe where in the run the current replay frame is
+	 * 
+	 * @return text giving the generation and sweep, or null if not replaying
+	 */
+	public synchronized String getReplayPosition() {
+		if(replay == null) return null;
+		return "Generation " + replay.getGeneration() + ", sweep " + replay.getSweep();
+	}
+	
 	// We might also want to get a stable list of agents while a simulation is running
 	
 	/**
@@ -295,20 +430,14 @@ public class Controller {
 	
 	//  TIME-DEPENDENT STATISTICS
 
-	// Capture the current statistical state of the system
-		
-	private List<Summary> stats = new ArrayList<Summary>();
-	
 	/**
-	 * Obtain a set of per-generation statistics since the last call to getStatistics(), or when the simulation was last reset
+	 * Obtain the stream of per-generation statistics; each subscriber has its own bounded buffer, so summaries
+	 * are not retained when nobody is listening.  Subscribers should resubscribe when the world is reset.
 	 * 
-	 * @return array of Statistics objects containing generation-by-generation data for processing
+	 * @return publisher of generation-by-generation data for processing
 	 */
-	public synchronized Summary[] getStatistics() {
-		if(stats.size() == 0) return null;
-		Summary[] astats = stats.toArray(new Summary[stats.size()]);
-		stats.clear();
-		return astats;
+	public SummaryStream getStatisticsStream() {
+		return statistics;
 	}
 
 	// Allow different UI objects to communicate with each other about an active agent; note, this is likely a cloned agent obtained from
@@ -330,6 +459,17 @@ public class Controller {
 	public Agent getActiveAgent() {
 		return activeAgent;
 	}
+
+	/**
+	 * Obtain the lineage of an agent's species, which may be done even as a simulation is running
+	 * 
+	 * @param a agent
+	 * @return its species and their ancestors, back to those present when the world was reset; empty if the species has
+	 * since died out without descendants
+	 */
+	public List<LineageTracker.Ancestor> getLineage(Agent a) {
+		return world.getLineage().getLineage(a.getSpeciesId());
+	}
 	
 	public JFrame getFrame() {
 		return masterWindow;
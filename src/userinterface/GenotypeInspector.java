@@ -1,6 +1,7 @@
 package userinterface;
 
 import java.text.DecimalFormat;
+import java.util.List;
 
 import javax.swing.BorderFactory;
 import javax.swing.GroupLayout;
@@ -9,6 +10,7 @@ import javax.swing.JPanel;
 import javax.swing.JTextField;
 
 import simulation.Agent;
+import simulation.LineageTracker;
 
 @SuppressWarnings("serial")
 public class GenotypeInspector extends JPanel {
@@ -20,9 +22,10 @@ public class GenotypeInspector extends JPanel {
 	private JTextField dirBox = new JTextField();
 	private JTextField efficiencyBox = new JTextField();
 	private JTextField foodBox = new JTextField();
+	private JTextField lineageBox = new JTextField();
 	
 	private JTextField boxes[] = new JTextField[]{
-		conBox, briBox, motBox, dirBox, efficiencyBox, foodBox
+		conBox, briBox, motBox, dirBox, efficiencyBox, foodBox, lineageBox
 	};
 	
 	private DecimalFormat roundDecimal = new DecimalFormat("0.0000");
@@ -35,6 +38,7 @@ public class GenotypeInspector extends JPanel {
 		JLabel dirLabel = new JLabel("Directedness");
 		JLabel efficiencyLabel = new JLabel("Efficiency");
 		JLabel foodLabel = new JLabel("Food consumed");
+		JLabel lineageLabel = new JLabel("Lineage");
 
 		// Layout the widgets within the panel
 		
@@ -52,6 +56,7 @@ public class GenotypeInspector extends JPanel {
 						.addComponent(dirLabel)
 						.addComponent(efficiencyLabel)
 						.addComponent(foodLabel)
+						.addComponent(lineageLabel)
 				)
 				.addGroup(layout.createParallelGroup()
 						.addComponent(conBox)
@@ -60,6 +65,7 @@ public class GenotypeInspector extends JPanel {
 						.addComponent(dirBox)
 						.addComponent(efficiencyBox)
 						.addComponent(foodBox)
+						.addComponent(lineageBox)
 				)
 		);
 
@@ -82,6 +88,9 @@ public class GenotypeInspector extends JPanel {
 				.addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
 						.addComponent(foodLabel).addComponent(foodBox)
 				)
+				.addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+						.addComponent(lineageLabel).addComponent(lineageBox)
+				)
 		);
 		
 		for(JTextField box : boxes) {
@@ -99,6 +108,7 @@ public class GenotypeInspector extends JPanel {
 			for(JTextField box : boxes) {
 				box.setText("");
 			}
+			lineageBox.setToolTipText(null);
 		} else {
 			conBox.setText(roundDecimal.format(a.getContrast()));
 			briBox.setText(roundDecimal.format(a.getBrightness()));
@@ -106,7 +116,29 @@ public class GenotypeInspector extends JPanel {
 			dirBox.setText(roundDecimal.format(a.getDirectedness()));
 			efficiencyBox.setText(roundDecimal.format(a.getEfficiency()));
 			foodBox.setText(roundDecimal.format(a.getFitness()));
+			showLineage(controller.getLineage(a));
+		}
+	}
+
+	// Show a lineage as species ids and the generations they arose in, newest first; the tooltip gives the founders'
+	// genotypes too
+	private void showLineage(List<LineageTracker.Ancestor> lineage) {
+		if(lineage.isEmpty()) {
+			lineageBox.setText("extinct");
+			lineageBox.setToolTipText(null);
+			return;
+		}
+		StringBuilder text = new StringBuilder(), tip = new StringBuilder("<html>");
+		for(LineageTracker.Ancestor s : lineage) {
+			if(text.length() > 0) text.append(" < ");
+			text.append(s.speciesId + " (" + s.birthGeneration + ")");
+			tip.append("species " + s.speciesId + ", generation " + s.birthGeneration + ": contrast " + roundDecimal.format(s.contrast)
+					+ ", brightness " + roundDecimal.format(s.brightness) + ", motility " + roundDecimal.format(s.motility)
+					+ ", directedness " + roundDecimal.format(s.directedness) + "<br>");
 		}
+		lineageBox.setText(text.toString());
+		lineageBox.setCaretPosition(0);
+		lineageBox.setToolTipText(tip.append("</html>").toString());
 	}
 
 }
@@ -7,6 +7,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.util.Iterator;
+import java.util.concurrent.Flow;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -16,13 +17,18 @@ import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 
+import simulation.SummaryStream;
 import simulation.World.Summary;
 
 @SuppressWarnings("serial")
 public class GraphPanel extends JPanel {
 
+	// Number of generations buffered between refreshes of the plot; if the simulation outruns this, the plotted data are thinned out
+	private static final int STATISTICS_BUFFER = 4096;
+
 	private Controller controller;
 	
 	private String series[] = new String[]{ "B", "C", "M", "D" };
@@ -93,12 +99,19 @@ public class GraphPanel extends JPanel {
 		});
 		exportButton.setEnabled(false);
 		add(new JPanel(new FlowLayout(FlowLayout.RIGHT)).add(exportButton));
+		
+		subscribe();
 	}
 
-	public void addStatistics() {
-		Summary[] stats = controller.getStatistics();
-		if(stats == null) return;
-		for(Summary s : stats) {
+	// Receives statistics on the event dispatch thread, but only as many as have been requested by addStatistics()
+	private class StatisticsSubscriber implements Flow.Subscriber<Summary> {
+		@Override
+		public void onSubscribe(Flow.Subscription s) {
+			subscription = s;
+		}
+
+		@Override
+		public void onNext(Summary s) {
 			// Add new data to the plot
 			statsPlot.addPoint(0, s.meanBrightness);
 			statsPlot.addPoint(1, s.meanContrast);
@@ -109,6 +122,24 @@ public class GraphPanel extends JPanel {
 			domPlot.addPoint(2, s.domMotility);
 			domPlot.addPoint(3, s.domDirectedness);
 		}
+
+		@Override
+		public void onError(Throwable e) { }
+
+		@Override
+		public void onComplete() { }
+	}
+
+	private Flow.Subscription subscription = null;
+
+	// (Re)subscribe to the controller's statistics, discarding anything buffered from an earlier world
+	private void subscribe() {
+		if(subscription != null) subscription.cancel();
+		controller.getStatisticsStream().subscribe(new StatisticsSubscriber(), SummaryStream.Policy.DECIMATE, STATISTICS_BUFFER, SwingUtilities::invokeLater);
+	}
+
+	public void addStatistics() {
+		if(subscription != null) subscription.request(STATISTICS_BUFFER);
 	}
 	
 	public void exportStatistics(PrintStream out) {
@@ -165,7 +196,8 @@ public class GraphPanel extends JPanel {
 	}
 
 	public void worldUpdated() {
-		// Clear the plots
+		// Clear the plots, and any statistics from the old world that have not been plotted yet
+		subscribe();
 		statsPlot.clear(true);
 		domPlot.clear(true);
 		exportButton.setEnabled(false);
@@ -0,0 +1,145 @@
+package userinterface;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+
+import javax.swing.BorderFactory;
+import javax.swing.GroupLayout;
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.SwingConstants;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * A panel for recording the trajectory of the world sweep-by-sweep, and for replaying a recorded trajectory in the world view
+ *
+ * @author richard
+ *
+ */
+
+@SuppressWarnings("serial")
+public class ReplayPanel extends JPanel {
+
+	private Controller controller;
+
+	private JButton recordButton = new JButton("Record...");
+	private JButton openButton = new JButton("Replay...");
+	private JButton closeButton = new JButton("Close");
+	private JSlider frameSlider = new JSlider(0, 0, 0);
+	private JLabel positionLabel = new JLabel(" ");
+
+	public ReplayPanel(Controller c) {
+		controller = c;
+
+		recordButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				try {
+					if(controller.isRecording()) {
+						controller.stopRecording();
+					} else {
+						JFileChooser chooser = new JFileChooser();
+						if(chooser.showSaveDialog(controller.getFrame()) == JFileChooser.APPROVE_OPTION) {
+							controller.startRecording(chooser.getSelectedFile());
+						}
+					}
+				} catch(IOException error) {
+					JOptionPane.showMessageDialog(controller.getFrame(), error.getLocalizedMessage(), "Error recording trajectory", JOptionPane.ERROR_MESSAGE);
+				}
+				recordButton.setText(controller.isRecording() ? "Stop recording" : "Record...");
+			}
+		});
+
+		openButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				JFileChooser chooser = new JFileChooser();
+				if(chooser.showOpenDialog(controller.getFrame()) == JFileChooser.APPROVE_OPTION) {
+					try {
+						controller.openReplay(chooser.getSelectedFile());
+					} catch(IOException error) {
+						JOptionPane.showMessageDialog(controller.getFrame(), error.getLocalizedMessage(), "Error opening trajectory", JOptionPane.ERROR_MESSAGE);
+					}
+				}
+			}
+		});
+
+		closeButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { controller.closeReplay(); }
+		});
+
+		frameSlider.addChangeListener(new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				controller.seekReplay(frameSlider.getValue());
+				updatePosition();
+			}
+		});
+
+		// Layout the widgets within the panel
+
+		setBorder(BorderFactory.createEmptyBorder(8, 4, 4, 4));
+
+		GroupLayout layout = new GroupLayout(this);
+		setLayout(layout);
+
+		layout.setHorizontalGroup(layout.createParallelGroup()
+			.addGroup(layout.createSequentialGroup()
+				.addComponent(recordButton)
+				.addComponent(openButton)
+				.addComponent(closeButton)
+				)
+			.addComponent(frameSlider)
+			.addComponent(positionLabel)
+			);
+
+		layout.setVerticalGroup(layout.createSequentialGroup()
+			.addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+				.addComponent(recordButton)
+				.addComponent(openButton)
+				.addComponent(closeButton)
+				)
+			.addComponent(frameSlider, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+			.addComponent(positionLabel)
+			);
+
+		layout.linkSize(SwingConstants.HORIZONTAL, openButton, closeButton);
+
+		replayChanged();
+	}
+
+	private void updatePosition() {
+		String pos = controller.getReplayPosition();
+		positionLabel.setText(pos == null ? " " : pos);
+	}
+
+	/**
+	 * Called when a replay is opened or closed
+	 */
+	public void replayChanged() {
+		boolean replaying = controller.isReplaying();
+		frameSlider.setMaximum(replaying ? controller.getReplayFrameCount()-1 : 0);
+		frameSlider.setValue(0);
+		frameSlider.setEnabled(replaying);
+		closeButton.setEnabled(replaying);
+		updatePosition();
+	}
+
+	public void jobStarted() {
+		recordButton.setEnabled(false);
+		openButton.setEnabled(false);
+	}
+
+	public void jobFinished() {
+		recordButton.setEnabled(true);
+		openButton.setEnabled(true);
+	}
+
+}